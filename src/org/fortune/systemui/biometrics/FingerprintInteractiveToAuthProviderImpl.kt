@@ -17,27 +17,25 @@
 package org.fortune.systemui.biometrics
 
 import android.content.Context
-import android.database.ContentObserver
 import android.hardware.biometrics.common.AuthenticateReason
-import android.provider.Settings
 import com.android.systemui.biometrics.FingerprintInteractiveToAuthProvider
+import com.android.systemui.common.coroutine.ConflatedCallbackFlow.conflatedCallbackFlow
 import com.android.systemui.dagger.qualifiers.Background
 import com.android.systemui.user.domain.interactor.SelectedUserInteractor
-import com.android.systemui.util.settings.SecureSettings
-import com.android.systemui.util.settings.SettingsProxyExt.observerFlow
 import javax.inject.Inject
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
+import org.fortune.systemui.util.settings.SettingsCache
 
 class FingerprintInteractiveToAuthProviderImpl
 @Inject
 constructor(
   @Background private val backgroundDispatcher: CoroutineDispatcher,
   private val context: Context,
-  private val secureSettings: SecureSettings,
+  private val settingsCache: SettingsCache,
   selectedUserInteractor: SelectedUserInteractor,
 ) : FingerprintInteractiveToAuthProvider {
 
@@ -51,26 +49,26 @@ constructor(
   override val enabledForCurrentUser =
     selectedUserInteractor.selectedUser
       .flatMapLatest { currentUserId ->
-        secureSettings.observerFlow(Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED).map { isEnabled(currentUserId) }
+        settingChanges(currentUserId).map { isEnabled(currentUserId) }
       }
       .flowOn(backgroundDispatcher)
 
+  private fun settingChanges(userId: Int) = conflatedCallbackFlow {
+    val callback =
+      SettingsCache.Callback { key, changedUserId ->
+        if (key == SettingsCache.Key.SFPS_PERFORMANT_AUTH_ENABLED && changedUserId == userId) {
+          trySend(Unit)
+        }
+      }
+    settingsCache.addCallback(callback)
+    awaitClose { settingsCache.removeCallback(callback) }
+  }
+
   private fun isEnabled(userId: Int): Boolean {
-    var value =
-      Settings.Secure.getIntForUser(
-        context.contentResolver,
-        Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED,
-        -1,
-        userId,
-      )
+    var value = settingsCache.getInt(SettingsCache.Key.SFPS_PERFORMANT_AUTH_ENABLED, userId)
     if (value == -1) {
       value = defaultValue
-      Settings.Secure.putIntForUser(
-        context.contentResolver,
-        Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED,
-        value,
-        userId,
-      )
+      settingsCache.putInt(SettingsCache.Key.SFPS_PERFORMANT_AUTH_ENABLED, value, userId)
     }
     return value == 0
   }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.broadcast;
+
+import android.content.BroadcastReceiver;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.util.ArrayMap;
+
+import androidx.annotation.NonNull;
+
+import com.android.systemui.Dumpable;
+import com.android.systemui.broadcast.BroadcastDispatcher;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.dump.DumpManager;
+
+import org.fortune.systemui.util.FortuneTrace;
+
+import java.io.PrintWriter;
+
+import javax.inject.Inject;
+
+/**
+ * Broadcast registrations of Fortune components.
+ *
+ * Receivers are multiplexed by the shared {@link BroadcastDispatcher}, so registering and
+ * unregistering does not go to ActivityManager, and they are delivered on the background thread.
+ * Live receivers and registration churn are counted per owner and shown in the dump, and the
+ * number of live receivers is also a {@link FortuneTrace} counter.
+ *
+ * Like the dispatcher this does not replay sticky broadcasts, components that need the current
+ * sticky value have to query it themselves.
+ */
+@SysUISingleton
+public class FortuneBroadcastDispatcher implements Dumpable {
+
+    private static final String TAG = "FortuneBroadcastDispatcher";
+    private static final String LIVE_RECEIVERS_COUNTER = "Fortune:liveReceivers";
+
+    private final BroadcastDispatcher mBroadcastDispatcher;
+    private final Handler mBgHandler;
+
+    // Guarded by this.
+    private final ArrayMap<BroadcastReceiver, String> mOwners = new ArrayMap<>();
+    private final ArrayMap<String, OwnerStats> mStats = new ArrayMap<>();
+
+    @Inject
+    public FortuneBroadcastDispatcher(BroadcastDispatcher broadcastDispatcher,
+            @Background Handler bgHandler, DumpManager dumpManager) {
+        mBroadcastDispatcher = broadcastDispatcher;
+        mBgHandler = bgHandler;
+        dumpManager.registerDumpable(TAG, this);
+    }
+
+    /**
+     * Registers {@code receiver} for {@code filter}, delivered on the background thread.
+     * Registering a receiver that is already registered does nothing.
+     *
+     * @param owner name the registration is accounted to in the dump
+     */
+    public void registerReceiver(BroadcastReceiver receiver, IntentFilter filter, String owner) {
+        synchronized (this) {
+            if (mOwners.containsKey(receiver)) {
+                return;
+            }
+            mOwners.put(receiver, owner);
+            final OwnerStats stats = getOrCreateStats(owner);
+            stats.live++;
+            stats.registrations++;
+            FortuneTrace.counter(LIVE_RECEIVERS_COUNTER, mOwners.size());
+        }
+        mBroadcastDispatcher.registerReceiverWithHandler(receiver, filter, mBgHandler);
+    }
+
+    /** Unregisters {@code receiver}, does nothing if it is not registered. */
+    public void unregisterReceiver(BroadcastReceiver receiver) {
+        synchronized (this) {
+            final String owner = mOwners.remove(receiver);
+            if (owner == null) {
+                return;
+            }
+            final OwnerStats stats = getOrCreateStats(owner);
+            stats.live--;
+            stats.unregistrations++;
+            FortuneTrace.counter(LIVE_RECEIVERS_COUNTER, mOwners.size());
+        }
+        mBroadcastDispatcher.unregisterReceiver(receiver);
+    }
+
+    /** Number of receivers currently registered through this dispatcher. */
+    public synchronized int getLiveReceiverCount() {
+        return mOwners.size();
+    }
+
+    private OwnerStats getOrCreateStats(String owner) {
+        OwnerStats stats = mStats.get(owner);
+        if (stats == null) {
+            stats = new OwnerStats();
+            mStats.put(owner, stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public synchronized void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        pw.println(TAG + ":");
+        pw.println("  live receivers: " + mOwners.size());
+        for (int i = 0; i < mStats.size(); i++) {
+            final OwnerStats stats = mStats.valueAt(i);
+            pw.println("  " + mStats.keyAt(i) + ": live=" + stats.live
+                    + " registrations=" + stats.registrations
+                    + " unregistrations=" + stats.unregistrations);
+        }
+    }
+
+    private static final class OwnerStats {
+        int live;
+        int registrations;
+        int unregistrations;
+    }
+}
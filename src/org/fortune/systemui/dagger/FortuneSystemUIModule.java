@@ -92,7 +92,12 @@ import javax.inject.Named;
 
 import org.fortune.systemui.biometrics.FingerprintInteractiveToAuthProviderImpl;
 import org.fortune.systemui.controls.AospaControlsTileResourceConfigurationImpl;
+import org.fortune.systemui.log.dagger.FortuneLogModule;
 import org.fortune.systemui.qs.tileimpl.FortuneQSModule;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.util.BinderCallDetector;
+import org.fortune.systemui.util.FortuneDispatchMonitor;
+import org.fortune.systemui.util.FortuneTraceCommand;
 import org.fortune.systemui.volume.dagger.FortuneVolumeModule;
 
 import dagger.Binds;
@@ -137,6 +142,7 @@ import dagger.multibindings.IntoMap;
         ToastModule.class,
         WallpaperModule.class,
         ShortcutHelperModule.class,
+        FortuneLogModule.class,
         FortuneQSModule.class,
         FortuneVolumeModule.class,
 })
@@ -221,6 +227,26 @@ public abstract class FortuneSystemUIModule {
     abstract FingerprintInteractiveToAuthProvider bindFingerprintInteractiveToAuthProviderImpl(
             FingerprintInteractiveToAuthProviderImpl impl);
 
+    @Binds
+    @IntoMap
+    @ClassKey(BinderCallDetector.class)
+    abstract CoreStartable bindBinderCallDetector(BinderCallDetector detector);
+
+    @Binds
+    @IntoMap
+    @ClassKey(FortuneTraceCommand.class)
+    abstract CoreStartable bindFortuneTraceCommand(FortuneTraceCommand command);
+
+    @Binds
+    @IntoMap
+    @ClassKey(FortuneDispatchMonitor.class)
+    abstract CoreStartable bindFortuneDispatchMonitor(FortuneDispatchMonitor monitor);
+
+    @Binds
+    @IntoMap
+    @ClassKey(FortuneTileStateStore.class)
+    abstract CoreStartable bindFortuneTileStateStore(FortuneTileStateStore store);
+
     /** */
     @Provides
     @IntoMap
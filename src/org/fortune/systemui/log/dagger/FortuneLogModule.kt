@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.log.dagger
+
+import com.android.systemui.dagger.SysUISingleton
+import com.android.systemui.log.LogBuffer
+import com.android.systemui.log.LogBufferFactory
+import dagger.Module
+import dagger.Provides
+
+/**
+ * Log buffers of the Fortune components. Messages are stored unformatted in a ring buffer and
+ * only turned into strings when the buffer is dumped, so they are cheap enough for hot paths.
+ */
+@Module
+interface FortuneLogModule {
+
+    companion object {
+        /** Provides a logging buffer for Fortune tiles and the tri-state UI. */
+        @Provides
+        @JvmStatic
+        @SysUISingleton
+        @FortuneLog
+        fun provideFortuneLogBuffer(factory: LogBufferFactory): LogBuffer =
+            factory.create("FortuneLog", 250)
+    }
+}
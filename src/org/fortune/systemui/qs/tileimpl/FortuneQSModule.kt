@@ -26,66 +26,110 @@ import org.fortune.systemui.qs.tiles.SoundTile
 import org.fortune.systemui.qs.tiles.UsbTetherTile
 import org.fortune.systemui.qs.tiles.WifiTile
 import com.android.systemui.qs.tileimpl.QSTileImpl
-import dagger.Binds
 import dagger.Module
+import dagger.Provides
 import dagger.multibindings.IntoMap
 import dagger.multibindings.StringKey
+import javax.inject.Provider
 
+/**
+ * Fortune tiles for the QS tile map. QSFactoryImpl gets the map as providers, so a tile is only
+ * constructed when its spec is created, and constructors must stay cheap because the edit panel
+ * also creates tiles just to check whether they are available. A tile of the same spec that was
+ * removed shortly before is taken back from the [FortuneTilePool] instead.
+ */
 @Module
 interface FortuneQSModule {
 
-    /** Inject AlwaysOnDisplayTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(AlwaysOnDisplayTile.TILE_SPEC)
-    fun bindAlwaysOnDisplayTile(alwaysOnDisplayTile: AlwaysOnDisplayTile): QSTileImpl<*>
-
-    /** Inject CaffeineTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(CaffeineTile.TILE_SPEC)
-    fun bindCaffeineTile(caffeineTile: CaffeineTile): QSTileImpl<*>
+    companion object {
+        /** Inject AlwaysOnDisplayTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(AlwaysOnDisplayTile.TILE_SPEC)
+        fun provideAlwaysOnDisplayTile(
+            pool: FortuneTilePool,
+            alwaysOnDisplayTile: Provider<AlwaysOnDisplayTile>,
+        ): QSTileImpl<*> = pool.take(AlwaysOnDisplayTile.TILE_SPEC) ?: alwaysOnDisplayTile.get()
 
-    /** Inject CellularTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(CellularTile.TILE_SPEC)
-    fun bindCellularTile(cellularTile: CellularTile): QSTileImpl<*>
+        /** Inject CaffeineTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(CaffeineTile.TILE_SPEC)
+        fun provideCaffeineTile(
+            pool: FortuneTilePool,
+            caffeineTile: Provider<CaffeineTile>,
+        ): QSTileImpl<*> = pool.take(CaffeineTile.TILE_SPEC) ?: caffeineTile.get()
 
-    /** Inject DataSwitchTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(DataSwitchTile.TILE_SPEC)
-    fun bindDataSwitchTile(dataSwitchTile: DataSwitchTile): QSTileImpl<*>
+        /** Inject CellularTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(CellularTile.TILE_SPEC)
+        fun provideCellularTile(
+            pool: FortuneTilePool,
+            cellularTile: Provider<CellularTile>,
+        ): QSTileImpl<*> = pool.take(CellularTile.TILE_SPEC) ?: cellularTile.get()
 
-    /** Inject DcDimmingTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(DcDimmingTile.TILE_SPEC)
-    fun bindDcDimmingTile(dcDimmingTile: DcDimmingTile): QSTileImpl<*>
+        /** Inject DataSwitchTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(DataSwitchTile.TILE_SPEC)
+        fun provideDataSwitchTile(
+            pool: FortuneTilePool,
+            dataSwitchTile: Provider<DataSwitchTile>,
+        ): QSTileImpl<*> = pool.take(DataSwitchTile.TILE_SPEC) ?: dataSwitchTile.get()
 
-    /** Inject HeadsUpTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(HeadsUpTile.TILE_SPEC)
-    fun bindHeadsUpTile(headsUpTile: HeadsUpTile): QSTileImpl<*>
+        /** Inject DcDimmingTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(DcDimmingTile.TILE_SPEC)
+        fun provideDcDimmingTile(
+            pool: FortuneTilePool,
+            dcDimmingTile: Provider<DcDimmingTile>,
+        ): QSTileImpl<*> = pool.take(DcDimmingTile.TILE_SPEC) ?: dcDimmingTile.get()
 
-    /** Inject WifiTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(WifiTile.TILE_SPEC)
-    fun bindWifiTile(wifiTile: WifiTile): QSTileImpl<*>
+        /** Inject HeadsUpTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(HeadsUpTile.TILE_SPEC)
+        fun provideHeadsUpTile(
+            pool: FortuneTilePool,
+            headsUpTile: Provider<HeadsUpTile>,
+        ): QSTileImpl<*> = pool.take(HeadsUpTile.TILE_SPEC) ?: headsUpTile.get()
 
-    /** Inject UsbTetherTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(UsbTetherTile.TILE_SPEC)
-    fun bindUsbTetherTile(usbTetherTile: UsbTetherTile): QSTileImpl<*>
+        /** Inject WifiTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(WifiTile.TILE_SPEC)
+        fun provideWifiTile(
+            pool: FortuneTilePool,
+            wifiTile: Provider<WifiTile>,
+        ): QSTileImpl<*> = pool.take(WifiTile.TILE_SPEC) ?: wifiTile.get()
 
-    /** Inject SoundTile into tileMap in QSModule */
-    @Binds
-    @IntoMap
-    @StringKey(SoundTile.TILE_SPEC)
-    fun bindSoundTile(soundTile: SoundTile): QSTileImpl<*>
+        /** Inject UsbTetherTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(UsbTetherTile.TILE_SPEC)
+        fun provideUsbTetherTile(
+            pool: FortuneTilePool,
+            usbTetherTile: Provider<UsbTetherTile>,
+        ): QSTileImpl<*> = pool.take(UsbTetherTile.TILE_SPEC) ?: usbTetherTile.get()
 
+        /** Inject SoundTile into tileMap in QSModule */
+        @Provides
+        @JvmStatic
+        @IntoMap
+        @StringKey(SoundTile.TILE_SPEC)
+        fun provideSoundTile(
+            pool: FortuneTilePool,
+            soundTile: Provider<SoundTile>,
+        ): QSTileImpl<*> = pool.take(SoundTile.TILE_SPEC) ?: soundTile.get()
+    }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.internal.logging.MetricsLogger;
+import com.android.systemui.animation.Expandable;
+import com.android.systemui.plugins.ActivityStarter;
+import com.android.systemui.plugins.FalsingManager;
+import com.android.systemui.plugins.qs.QSTile.State;
+import com.android.systemui.plugins.statusbar.StatusBarStateController;
+import com.android.systemui.qs.QSHost;
+import com.android.systemui.qs.QsEventLogger;
+import com.android.systemui.qs.customize.TileQueryHelper;
+import com.android.systemui.qs.logging.QSLogger;
+import com.android.systemui.qs.tileimpl.QSTileImpl;
+
+import org.fortune.systemui.util.FortuneDispatchMonitor;
+import org.fortune.systemui.util.FortuneTrace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Base class of the Fortune tiles.
+ *
+ * Destroying a tile the host showed hands it to the {@link FortuneTilePool} first, so a rebuild
+ * that brings the spec back gets this instance, with its registrations and state, back. State
+ * updates and clicks are recorded in {@link FortuneTileMetrics}. With {@link FortuneTrace} on, each
+ * state computation is a trace section and each click an async slice on the tiles track that ends
+ * when the state it caused is published. State computations also go through the
+ * {@link FortuneDispatchMonitor}. Tiles that call {@link #restoreSnapshot()} have their inputs
+ * kept in the {@link FortuneTileStateStore} under their spec, so they show their last state right
+ * after a restart.
+ */
+public abstract class FortuneQSTileImpl<TState extends State> extends QSTileImpl<TState> {
+
+    /** Labels and descriptions, see {@link FortuneTileStrings}. */
+    protected final FortuneTileStrings mStrings;
+
+    private final FortuneTilePool mTilePool;
+    private final FortuneTileMetrics mMetrics;
+    private final FortuneDispatchMonitor.Tracker mDispatchTracker;
+    private final FortuneTileStateStore mStateStore;
+    // Whether anything but the edit panel listened to the tile, which means the host shows it.
+    private volatile boolean mHostOwned;
+    private boolean mSnapshotEnabled;
+    private boolean mSnapshotRestorePosted;
+    // Only accessed on the background looper.
+    private boolean mSnapshotRestored;
+    private boolean mSnapshotClaimed;
+    private FortuneTileMetrics.TileStats mStats;
+    // Last state seen by the metrics, to tell updates that changed something from those that
+    // didn't. Only accessed on the background looper.
+    private TState mMetricsState;
+    private volatile long mClickNanos;
+    private FrameCoalescer mCoalescer;
+    private String mRefreshSectionName;
+    // Cookie of the click slice waiting for a published state, 0 if none.
+    private volatile int mClickTraceCookie;
+
+    protected FortuneQSTileImpl(
+            QSHost host,
+            QsEventLogger uiEventLogger,
+            Looper backgroundLooper,
+            Handler mainHandler,
+            FalsingManager falsingManager,
+            MetricsLogger metricsLogger,
+            StatusBarStateController statusBarStateController,
+            ActivityStarter activityStarter,
+            QSLogger qsLogger,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
+    ) {
+        super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
+                statusBarStateController, activityStarter, qsLogger);
+        mTilePool = tilePool;
+        mMetrics = metrics;
+        mDispatchTracker = metrics.newDispatchTracker();
+        mStateStore = stateStore;
+        mStrings = strings;
+    }
+
+    @Override
+    public void click(@Nullable Expandable expandable) {
+        mClickNanos = SystemClock.elapsedRealtimeNanos();
+        if (FortuneTrace.isEnabled()) {
+            final int previous = mClickTraceCookie;
+            if (previous != 0) {
+                FortuneTrace.endAsync(FortuneTrace.TRACK_TILES, previous);
+            }
+            final int cookie = FortuneTrace.newCookie();
+            FortuneTrace.beginAsync(FortuneTrace.TRACK_TILES, getTileSpec() + ":click", cookie);
+            mClickTraceCookie = cookie;
+        }
+        super.click(expandable);
+    }
+
+    @Override
+    protected void handleRefreshState(@Nullable Object arg) {
+        final FortuneTileMetrics.TileStats stats = getStats();
+        stats.noteRefreshEntry();
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final boolean traced = FortuneTrace.beginSection(mRefreshSectionName);
+        final boolean tracked = mDispatchTracker.begin(mRefreshSectionName);
+        mMetrics.begin(stats);
+        try {
+            super.handleRefreshState(arg);
+        } finally {
+            mMetrics.end();
+            mDispatchTracker.end(tracked);
+            FortuneTrace.endSection(traced);
+        }
+        final long end = SystemClock.elapsedRealtimeNanos();
+        if (mMetricsState == null) {
+            mMetricsState = newTileState();
+        }
+        final boolean published = mState.copyTo(mMetricsState);
+        stats.noteUpdate((end - start) / 1000, published);
+        final long clickNanos = mClickNanos;
+        if (published && clickNanos != 0) {
+            mClickNanos = 0;
+            stats.noteClickPublished((end - clickNanos) / 1000);
+        }
+        if (published && mSnapshotClaimed) {
+            mStateStore.scheduleSave(this);
+        }
+        final int clickTraceCookie = mClickTraceCookie;
+        if (published && clickTraceCookie != 0) {
+            mClickTraceCookie = 0;
+            FortuneTrace.endAsync(FortuneTrace.TRACK_TILES, clickTraceCookie);
+        }
+    }
+
+    /**
+     * Restores the inputs saved by {@link #onSaveSnapshot} in an earlier run, and saves them
+     * whenever the published state changes from now on. Tiles call this from their constructor,
+     * which stays cheap: the snapshot is read on the background looper once the tile has its
+     * spec, ahead of the state computations the host asks for.
+     */
+    protected final void restoreSnapshot() {
+        mSnapshotEnabled = true;
+    }
+
+    @Override
+    public void setListening(Object listener, boolean listening) {
+        if (listening && !mHostOwned && !isEditPanelListener(listener)) {
+            mHostOwned = true;
+        }
+        super.setListening(listener, listening);
+    }
+
+    /** Whether {@code listener} belongs to the edit panel's throwaway tiles. */
+    private static boolean isEditPanelListener(Object listener) {
+        return listener != null
+                && listener.getClass().getName().startsWith(TileQueryHelper.class.getName());
+    }
+
+    /** Whether the host showed this tile, as opposed to the edit panel only querying it. */
+    boolean isHostOwned() {
+        return mHostOwned;
+    }
+
+    @Override
+    public void setTileSpec(String tileSpec) {
+        super.setTileSpec(tileSpec);
+        if (mSnapshotEnabled && !mSnapshotRestorePosted && tileSpec != null) {
+            mSnapshotRestorePosted = true;
+            mHandler.post(this::handleRestoreSnapshot);
+        }
+    }
+
+    private void handleRestoreSnapshot() {
+        mSnapshotRestored = true;
+        final FortuneTileStateStore.Snapshot snapshot = mStateStore.get(getSnapshotKey());
+        if (snapshot == null) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot.data))) {
+            onRestoreSnapshot(in, snapshot.fromThisBoot);
+        } catch (IOException | RuntimeException e) {
+            // A snapshot of an older build of the tile, or a corrupt one.
+            Log.w(TAG, "Ignoring the snapshot of " + getSnapshotKey(), e);
+        }
+    }
+
+    @Override
+    protected void handleSetListening(boolean listening) {
+        super.handleSetListening(listening);
+        // Only the tile the host shows may act on and save the snapshot of its spec, not the
+        // throwaway ones the edit panel creates, and only one of those at a time.
+        if (listening && mSnapshotRestored && !mSnapshotClaimed && mHostOwned
+                && mStateStore.claim(this)) {
+            mSnapshotClaimed = true;
+            onClaimSnapshot();
+        }
+    }
+
+    /**
+     * Writes what the tile needs to compute its current state again, on the background looper.
+     * Tiles that call {@link #restoreSnapshot()} implement this and {@link #onRestoreSnapshot}.
+     */
+    protected void onSaveSnapshot(DataOutputStream out) throws IOException {
+    }
+
+    /**
+     * Reads what {@link #onSaveSnapshot} wrote, on the background looper. Only restore what the
+     * tile shows here, anything with side effects belongs in {@link #onClaimSnapshot}.
+     * {@code fromThisBoot} is false if the snapshot was taken before the device rebooted.
+     */
+    protected void onRestoreSnapshot(DataInputStream in, boolean fromThisBoot)
+            throws IOException {
+    }
+
+    /**
+     * Called on the background looper the first time the tile listens for the host after its
+     * snapshot was restored, if no other tile of the spec owns the snapshot. From then on this
+     * instance owns the snapshot and saves it, until it is destroyed.
+     */
+    protected void onClaimSnapshot() {
+    }
+
+    /** Writes {@code text} to a snapshot, null included. */
+    protected static void writeSnapshotString(DataOutputStream out, @Nullable CharSequence text)
+            throws IOException {
+        out.writeBoolean(text != null);
+        if (text != null) {
+            out.writeUTF(text.toString());
+        }
+    }
+
+    /** Reads what {@link #writeSnapshotString} wrote. */
+    @Nullable
+    protected static String readSnapshotString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    String getSnapshotKey() {
+        return getTileSpec();
+    }
+
+    /** Returns the current snapshot of the tile, or null if it could not be written. */
+    @Nullable
+    byte[] saveSnapshot() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            onSaveSnapshot(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save the snapshot of " + getSnapshotKey(), e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        if (mSnapshotClaimed) {
+            // Whatever the tile released when destroyed must not come back with the next one.
+            mSnapshotClaimed = false;
+            mStateStore.release(this);
+        }
+    }
+
+    /** Reports the requests and runs of the coalescer feeding this tile in the metrics. */
+    protected final void trackCoalescer(FrameCoalescer coalescer) {
+        mCoalescer = coalescer;
+    }
+
+    private FortuneTileMetrics.TileStats getStats() {
+        final String spec = getTileSpec() != null ? getTileSpec() : getClass().getSimpleName();
+        if (mStats == null || !mStats.spec.equals(spec)) {
+            mStats = mMetrics.getStats(spec);
+            mStats.coalescer = mCoalescer;
+            mRefreshSectionName = spec + ":refreshState";
+        }
+        return mStats;
+    }
+
+    @Override
+    public void destroy() {
+        if (mTilePool.park(this)) {
+            // The panel that showed us is gone, don't keep its callbacks around while parked.
+            removeCallbacks();
+        } else {
+            super.destroy();
+        }
+    }
+
+    /** Destroys the tile for real, called by the pool once it gave up on reusing it. */
+    void destroyNow() {
+        super.destroy();
+    }
+
+    /** Called by the pool when the tile is handed out again. */
+    void reattach(int parkedUserId, int currentUserId) {
+        if (parkedUserId != currentUserId) {
+            userSwitch(currentUserId);
+        } else {
+            // Whatever changed while we were parked without listening.
+            refreshState();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.os.Binder;
+import android.os.Build;
+import android.os.Debug;
+import android.os.IBinder;
+import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.systemui.Dumpable;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dump.DumpManager;
+
+import org.fortune.systemui.util.BinderCallDetector;
+import org.fortune.systemui.util.FortuneDispatchMonitor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.inject.Inject;
+
+/**
+ * Per spec counters of the Fortune tiles, fed by {@link FortuneQSTileImpl}.
+ *
+ * For every spec this tracks how often the state was recomputed and how long that took, how many
+ * of those recomputations actually changed the published state, the latency from a click to the
+ * next published change, and, on debuggable builds, the binder transactions made while
+ * recomputing. Everything is shown in the dump, and update counts and the last update duration are
+ * also emitted as trace counters. {@code QSTileImpl.refreshState} is final, so refresh requests
+ * can't be counted where they are made; what is counted is every entry into
+ * {@code handleRefreshState}, and for tiles fed through a {@link FrameCoalescer} how many events
+ * came in, how many were merged before requesting a refresh and how many entries came from
+ * elsewhere. This is shown next to the process GC counts, which is what to look at after a storm
+ * of signal or telephony events. Dumping with {@code --json} prints the same numbers as JSON, for
+ * scripts that compare runs.
+ */
+@SysUISingleton
+public class FortuneTileMetrics implements Dumpable {
+
+    private static final String TAG = "FortuneTileMetrics";
+
+    /** Upper bounds in microseconds of the update duration histogram buckets. */
+    private static final long[] BUCKET_LIMITS_US = { 500, 1000, 2000, 4000, 8000, 16000 };
+
+    /** Binder calls are counted through the process transaction listener, not on user builds. */
+    private static final boolean BINDER_CALLS_ENABLED = Build.IS_DEBUGGABLE;
+
+    private final FortuneDispatchMonitor mDispatchMonitor;
+    private final ArrayMap<String, TileStats> mStats = new ArrayMap<>();
+
+    // The tile whose state is being computed and the thread computing it, if any.
+    private volatile TileStats mActiveTile;
+    private volatile Thread mActiveThread;
+
+    private final Binder.ProxyTransactListener mTransactListener =
+            new Binder.ProxyTransactListener() {
+                @Override
+                public Object onTransactStarted(@NonNull IBinder binder, int transactionCode) {
+                    final TileStats active = mActiveTile;
+                    if (active != null && mActiveThread == Thread.currentThread()) {
+                        active.noteBinderCall();
+                    }
+                    return null;
+                }
+
+                @Override
+                public void onTransactEnded(@Nullable Object session) {
+                }
+            };
+
+    @Inject
+    public FortuneTileMetrics(DumpManager dumpManager, BinderCallDetector binderCallDetector,
+            FortuneDispatchMonitor dispatchMonitor) {
+        mDispatchMonitor = dispatchMonitor;
+        dumpManager.registerDumpable(TAG, this);
+        if (BINDER_CALLS_ENABLED) {
+            // The process only has one transaction listener, the detector owns it.
+            binderCallDetector.setDelegate(mTransactListener);
+        }
+    }
+
+    /** Returns a dispatch monitor tracker for one tile, its dispatches show up as FortuneTiles. */
+    FortuneDispatchMonitor.Tracker newDispatchTracker() {
+        return mDispatchMonitor.newTracker("FortuneTiles");
+    }
+
+    /** Returns the stats of {@code spec}, creating them on first use. */
+    TileStats getStats(String spec) {
+        synchronized (mStats) {
+            TileStats stats = mStats.get(spec);
+            if (stats == null) {
+                stats = new TileStats(spec);
+                mStats.put(spec, stats);
+            }
+            return stats;
+        }
+    }
+
+    /** Attributes binder calls made on the current thread to {@code stats} until {@link #end}. */
+    void begin(TileStats stats) {
+        mActiveThread = Thread.currentThread();
+        mActiveTile = stats;
+    }
+
+    void end() {
+        mActiveTile = null;
+        mActiveThread = null;
+    }
+
+    @Override
+    public void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        final TileStats[] stats;
+        synchronized (mStats) {
+            stats = mStats.values().toArray(new TileStats[0]);
+        }
+        for (String arg : args) {
+            if ("--json".equals(arg)) {
+                dumpJson(pw, stats);
+                return;
+            }
+        }
+        pw.println(TAG + ":");
+        pw.println("  gcCount=" + Debug.getRuntimeStat("art.gc.gc-count")
+                + " blockingGcCount=" + Debug.getRuntimeStat("art.gc.blocking-gc-count"));
+        for (TileStats tile : stats) {
+            tile.dump(pw);
+        }
+    }
+
+    private static void dumpJson(PrintWriter pw, TileStats[] stats) {
+        final JsonWriter writer = new JsonWriter(pw);
+        try {
+            writer.beginObject();
+            writer.name("gcCount").value(Debug.getRuntimeStat("art.gc.gc-count"));
+            writer.name("blockingGcCount")
+                    .value(Debug.getRuntimeStat("art.gc.blocking-gc-count"));
+            writer.name("tiles").beginObject();
+            for (TileStats tile : stats) {
+                writer.name(tile.spec);
+                tile.dumpJson(writer);
+            }
+            writer.endObject();
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to dump metrics as JSON", e);
+        }
+        pw.println();
+    }
+
+    /** Counters of one tile spec. Updated from the tile's background thread. */
+    static final class TileStats {
+        final String spec;
+        // Set by the tile if its events go through a coalescer.
+        volatile FrameCoalescer coalescer;
+        private final String mUpdatesCounter;
+        private final String mDurationCounter;
+
+        private final int[] mDurationBuckets = new int[BUCKET_LIMITS_US.length + 1];
+        private long mRefreshEntries;
+        private long mUpdates;
+        private long mPublished;
+        private long mTotalDurationUs;
+        private long mMaxDurationUs;
+        private long mBinderCalls;
+        private long mClicks;
+        private long mTotalClickLatencyUs;
+        private long mMaxClickLatencyUs;
+
+        TileStats(String spec) {
+            this.spec = spec;
+            mUpdatesCounter = "FortuneTile:" + spec + ":updates";
+            mDurationCounter = "FortuneTile:" + spec + ":updateUs";
+        }
+
+        /** Called on every entry into handleRefreshState, before the state is computed. */
+        synchronized void noteRefreshEntry() {
+            mRefreshEntries++;
+        }
+
+        synchronized void noteUpdate(long durationUs, boolean published) {
+            mUpdates++;
+            if (published) {
+                mPublished++;
+            }
+            mTotalDurationUs += durationUs;
+            mMaxDurationUs = Math.max(mMaxDurationUs, durationUs);
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS_US.length && durationUs >= BUCKET_LIMITS_US[bucket]) {
+                bucket++;
+            }
+            mDurationBuckets[bucket]++;
+            if (Trace.isEnabled()) {
+                Trace.setCounter(mUpdatesCounter, mUpdates);
+                Trace.setCounter(mDurationCounter, durationUs);
+            }
+        }
+
+        synchronized void noteClickPublished(long latencyUs) {
+            mClicks++;
+            mTotalClickLatencyUs += latencyUs;
+            mMaxClickLatencyUs = Math.max(mMaxClickLatencyUs, latencyUs);
+        }
+
+        synchronized void noteBinderCall() {
+            mBinderCalls++;
+        }
+
+        synchronized void dumpJson(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("refreshEntries").value(mRefreshEntries);
+            writer.name("updates").value(mUpdates);
+            writer.name("published").value(mPublished);
+            writer.name("totalUpdateUs").value(mTotalDurationUs);
+            writer.name("maxUpdateUs").value(mMaxDurationUs);
+            if (BINDER_CALLS_ENABLED) {
+                writer.name("binderCalls").value(mBinderCalls);
+            }
+            writer.name("clicks").value(mClicks);
+            writer.name("totalClickToPublishUs").value(mTotalClickLatencyUs);
+            writer.name("maxClickToPublishUs").value(mMaxClickLatencyUs);
+            writer.name("histogram").beginArray();
+            for (int i = 0; i < mDurationBuckets.length; i++) {
+                writer.beginObject();
+                if (i < BUCKET_LIMITS_US.length) {
+                    writer.name("belowUs").value(BUCKET_LIMITS_US[i]);
+                }
+                writer.name("count").value(mDurationBuckets[i]);
+                writer.endObject();
+            }
+            writer.endArray();
+            final FrameCoalescer coalescer = this.coalescer;
+            if (coalescer != null) {
+                writer.name("events").value(coalescer.getRequestCount());
+                writer.name("eventRuns").value(coalescer.getRunCount());
+                writer.name("maxEventBurst").value(coalescer.getMaxBurst());
+                writer.name("otherRefreshEntries")
+                        .value(Math.max(0, mRefreshEntries - coalescer.getRunCount()));
+            }
+            writer.endObject();
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  " + spec + ":");
+            pw.println("    refreshEntries=" + mRefreshEntries
+                    + " updates=" + mUpdates + " published=" + mPublished
+                    + " avgUs=" + (mUpdates > 0 ? mTotalDurationUs / mUpdates : 0)
+                    + " maxUs=" + mMaxDurationUs
+                    + " binderCalls=" + (BINDER_CALLS_ENABLED ? mBinderCalls : "off"));
+            final StringBuilder histogram = new StringBuilder("    histogram:");
+            for (int i = 0; i < mDurationBuckets.length; i++) {
+                histogram.append(i < BUCKET_LIMITS_US.length
+                        ? " <" + BUCKET_LIMITS_US[i] + "us=" : " >=" + BUCKET_LIMITS_US[i - 1]
+                        + "us=").append(mDurationBuckets[i]);
+            }
+            pw.println(histogram);
+            pw.println("    clicks=" + mClicks
+                    + " avgClickToPublishUs=" + (mClicks > 0 ? mTotalClickLatencyUs / mClicks : 0)
+                    + " maxClickToPublishUs=" + mMaxClickLatencyUs);
+            final FrameCoalescer coalescer = this.coalescer;
+            if (coalescer != null) {
+                final long events = coalescer.getRequestCount();
+                final long runs = coalescer.getRunCount();
+                pw.println("    events=" + events + " runs=" + runs
+                        + " coalesced=" + (events - runs)
+                        + " maxBurst=" + coalescer.getMaxBurst()
+                        + " otherRefreshEntries=" + Math.max(0, mRefreshEntries - runs));
+            }
+        }
+    }
+}
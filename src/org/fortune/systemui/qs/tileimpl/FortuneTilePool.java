@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.os.Handler;
+import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+
+import androidx.annotation.Nullable;
+
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Main;
+import com.android.systemui.settings.UserTracker;
+import com.android.systemui.util.settings.SecureSettings;
+
+import javax.inject.Inject;
+
+/**
+ * Keeps Fortune tiles the QS host destroyed alive for a short while, so that a tile list rebuild
+ * that brings the same spec back reuses the instance instead of constructing and registering a
+ * new one. Parked tiles that are not taken back within {@link #PARK_TIMEOUT_MS} are destroyed.
+ *
+ * Only tiles the host showed are parked, and a parked tile is only handed out for a spec that is
+ * in the user's tile list. The edit panel creates and destroys tiles of every spec just to read
+ * their state, so it must neither evict parked tiles nor take the ones meant for the host; the
+ * specs it creates that the host doesn't show are not in the list.
+ */
+@SysUISingleton
+public class FortuneTilePool {
+
+    /** How long a removed tile waits to be reused before it is really destroyed. */
+    static final long PARK_TIMEOUT_MS = 30 * 1000;
+
+    private final Handler mMainHandler;
+    private final UserTracker mUserTracker;
+    private final SecureSettings mSecureSettings;
+
+    // One parked tile per spec, guarded by this.
+    private final ArrayMap<String, Parked> mParked = new ArrayMap<>();
+
+    @Inject
+    public FortuneTilePool(@Main Handler mainHandler, UserTracker userTracker,
+            SecureSettings secureSettings) {
+        mMainHandler = mainHandler;
+        mUserTracker = userTracker;
+        mSecureSettings = secureSettings;
+    }
+
+    /**
+     * Parks {@code tile} instead of destroying it. Returns false if it can't be pooled, in which
+     * case the caller has to destroy it.
+     */
+    boolean park(FortuneQSTileImpl<?> tile) {
+        final String spec = tile.getTileSpec();
+        if (spec == null || !tile.isHostOwned()) {
+            return false;
+        }
+        final Parked parked = new Parked(tile, mUserTracker.getUserId());
+        final Parked previous;
+        synchronized (this) {
+            previous = mParked.put(spec, parked);
+        }
+        if (previous != null) {
+            mMainHandler.removeCallbacks(previous);
+            previous.tile.destroyNow();
+        }
+        mMainHandler.postDelayed(parked, PARK_TIMEOUT_MS);
+        return true;
+    }
+
+    /** Returns the parked tile for {@code spec} ready to be used again, or null if none. */
+    @Nullable
+    public FortuneQSTileImpl<?> take(String spec) {
+        final Parked parked;
+        synchronized (this) {
+            if (mParked.isEmpty()) {
+                return null;
+            }
+            // The host creates tiles for its list, which it just read, so this is served from
+            // the settings cache.
+            if (!isInTileList(spec)) {
+                return null;
+            }
+            parked = mParked.remove(spec);
+        }
+        if (parked == null) {
+            return null;
+        }
+        mMainHandler.removeCallbacks(parked);
+        parked.tile.reattach(parked.userId, mUserTracker.getUserId());
+        return parked.tile;
+    }
+
+    private boolean isInTileList(String spec) {
+        final String tiles = mSecureSettings.getStringForUser(Settings.Secure.QS_TILES,
+                mUserTracker.getUserId());
+        if (tiles == null) {
+            return false;
+        }
+        for (String listed : TextUtils.split(tiles, ",")) {
+            if (spec.equals(listed.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class Parked implements Runnable {
+        final FortuneQSTileImpl<?> tile;
+        final int userId;
+
+        Parked(FortuneQSTileImpl<?> tile, int userId) {
+            this.tile = tile;
+            this.userId = userId;
+        }
+
+        @Override
+        public void run() {
+            synchronized (FortuneTilePool.this) {
+                if (mParked.get(tile.getTileSpec()) != this) {
+                    return;
+                }
+                mParked.remove(tile.getTileSpec());
+            }
+            tile.destroyNow();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.android.systemui.CoreStartable;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.inject.Inject;
+
+/**
+ * Snapshots of what the Fortune tiles last showed, kept on disk so that tiles created after a
+ * SystemUI restart or a user switch show their last state instead of defaults until their
+ * controllers report in.
+ *
+ * Each tile writes its own compact binary snapshot, see {@link FortuneQSTileImpl#restoreSnapshot}.
+ * Saves are debounced by {@link #SAVE_DELAY_MS} and written on the background thread. The file is
+ * read once, in the background when SystemUI starts or by the first tile that restores.
+ * Snapshots are dropped when the build or the SystemUI APK changed, since they may hold resource
+ * ids, and tiles are told whether their snapshot was taken during the current boot so they can
+ * skip values that don't survive a reboot.
+ */
+@SysUISingleton
+public class FortuneTileStateStore implements CoreStartable {
+
+    private static final String TAG = "FortuneTileStateStore";
+    private static final String FILE_NAME = "fortune_tile_state.bin";
+    private static final int VERSION = 3;
+    /** Anything past these limits means the file is corrupt. */
+    private static final int MAX_SNAPSHOTS = 64;
+    private static final int MAX_SNAPSHOT_BYTES = 4096;
+
+    /** How long saves are held back, so a burst of state changes is written once. */
+    static final long SAVE_DELAY_MS = 2000;
+    /** Boot times computed from the wall clock that are this close are the same boot. */
+    private static final long SAME_BOOT_TOLERANCE_MS = 5000;
+
+    private final Context mContext;
+    private final Handler mBgHandler;
+    private final Runnable mSave = this::save;
+
+    // All guarded by this. mSnapshots is null until the file was read.
+    private ArrayMap<String, Snapshot> mSnapshots;
+    private final ArraySet<FortuneQSTileImpl<?>> mDirty = new ArraySet<>();
+    // The tile that owns the snapshot of each key.
+    private final ArrayMap<String, FortuneQSTileImpl<?>> mOwners = new ArrayMap<>();
+
+    @Inject
+    public FortuneTileStateStore(Context context, @Background Handler bgHandler) {
+        // Tiles are shown before the user unlocks.
+        mContext = context.createDeviceProtectedStorageContext();
+        mBgHandler = bgHandler;
+    }
+
+    @Override
+    public void start() {
+        mBgHandler.post(() -> {
+            synchronized (this) {
+                loadLocked();
+            }
+        });
+    }
+
+    /**
+     * Returns the snapshot stored under {@code key}, or null if there is none. Reads the file if
+     * that didn't happen yet, so only call it on a background thread.
+     */
+    @Nullable
+    synchronized Snapshot get(String key) {
+        loadLocked();
+        return mSnapshots.get(key);
+    }
+
+    /**
+     * Makes {@code tile} the owner of the snapshot under its key, returns false if another tile
+     * owns it already.
+     */
+    synchronized boolean claim(FortuneQSTileImpl<?> tile) {
+        final String key = tile.getSnapshotKey();
+        final FortuneQSTileImpl<?> owner = mOwners.get(key);
+        if (owner != null && owner != tile) {
+            return false;
+        }
+        mOwners.put(key, tile);
+        return true;
+    }
+
+    /**
+     * Saves the snapshot of {@code tile}, which is being destroyed, and gives up its claim. Runs
+     * after the tile finished destroying on the background looper, so the snapshot shows what it
+     * released, and updates the stored snapshot right away so the next tile of the spec can't
+     * restore an older one.
+     */
+    void release(FortuneQSTileImpl<?> tile) {
+        mBgHandler.post(() -> {
+            final String key = tile.getSnapshotKey();
+            final byte[] data = tile.saveSnapshot();
+            synchronized (this) {
+                mDirty.remove(tile);
+                if (mOwners.get(key) == tile) {
+                    mOwners.remove(key);
+                }
+                if (data == null) {
+                    return;
+                }
+                loadLocked();
+                mSnapshots.put(key, new Snapshot(data, true));
+            }
+            mBgHandler.removeCallbacks(mSave);
+            mBgHandler.postDelayed(mSave, SAVE_DELAY_MS);
+        });
+    }
+
+    /** Saves the snapshot of {@code tile} soon. */
+    void scheduleSave(FortuneQSTileImpl<?> tile) {
+        synchronized (this) {
+            if (!mDirty.add(tile) || mDirty.size() > 1) {
+                return;
+            }
+        }
+        mBgHandler.postDelayed(mSave, SAVE_DELAY_MS);
+    }
+
+    private void loadLocked() {
+        if (mSnapshots != null) {
+            return;
+        }
+        mSnapshots = new ArrayMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(getFile().openRead()))) {
+            if (in.readInt() != VERSION
+                    || !Build.FINGERPRINT.equals(in.readUTF())
+                    || in.readLong() != getApkModified()) {
+                return;
+            }
+            final long bootWallTime = getBootWallTime();
+            final int count = readLength(in, MAX_SNAPSHOTS);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final boolean fromThisBoot =
+                        Math.abs(in.readLong() - bootWallTime) < SAME_BOOT_TOLERANCE_MS;
+                final byte[] data = new byte[readLength(in, MAX_SNAPSHOT_BYTES)];
+                in.readFully(data);
+                mSnapshots.put(key, new Snapshot(data, fromThisBoot));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Dropping unreadable tile snapshots", e);
+            mSnapshots.clear();
+            getFile().delete();
+        }
+    }
+
+    private static int readLength(DataInputStream in, int max) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > max) {
+            throw new IOException("Bad length " + length);
+        }
+        return length;
+    }
+
+    private void save() {
+        final FortuneQSTileImpl<?>[] tiles;
+        synchronized (this) {
+            tiles = mDirty.toArray(new FortuneQSTileImpl<?>[0]);
+            mDirty.clear();
+        }
+        // Tiles write their snapshots on the background looper they update their state on.
+        final String[] keys = new String[tiles.length];
+        final byte[][] snapshots = new byte[tiles.length][];
+        for (int i = 0; i < tiles.length; i++) {
+            keys[i] = tiles[i].getSnapshotKey();
+            snapshots[i] = tiles[i].saveSnapshot();
+        }
+        synchronized (this) {
+            loadLocked();
+            for (int i = 0; i < tiles.length; i++) {
+                if (snapshots[i] != null) {
+                    mSnapshots.put(keys[i], new Snapshot(snapshots[i], true));
+                }
+            }
+            writeLocked();
+        }
+    }
+
+    private void writeLocked() {
+        final AtomicFile file = getFile();
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeLong(getApkModified());
+            final long bootWallTime = getBootWallTime();
+            out.writeInt(mSnapshots.size());
+            for (int i = 0; i < mSnapshots.size(); i++) {
+                final Snapshot snapshot = mSnapshots.valueAt(i);
+                out.writeUTF(mSnapshots.keyAt(i));
+                // Snapshots of an earlier boot keep looking like one.
+                out.writeLong(snapshot.fromThisBoot ? bootWallTime : 0);
+                out.writeInt(snapshot.data.length);
+                out.write(snapshot.data);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write tile snapshots", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private AtomicFile getFile() {
+        return new AtomicFile(new File(mContext.getFilesDir(), FILE_NAME));
+    }
+
+    private long getApkModified() {
+        return new File(mContext.getApplicationInfo().sourceDir).lastModified();
+    }
+
+    private static long getBootWallTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
+
+    /** A tile's snapshot as written by {@link FortuneQSTileImpl#saveSnapshot}. */
+    static final class Snapshot {
+        final byte[] data;
+        /** Whether it was taken during the current boot. */
+        final boolean fromThisBoot;
+
+        Snapshot(byte[] data, boolean fromThisBoot) {
+            this.data = data;
+            this.fromThisBoot = fromThisBoot;
+        }
+    }
+}
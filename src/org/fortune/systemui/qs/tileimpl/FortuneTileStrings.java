@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
+
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.statusbar.policy.ConfigurationController;
+import com.android.systemui.statusbar.policy.ConfigurationController.ConfigurationListener;
+
+import javax.inject.Inject;
+
+/**
+ * Strings the Fortune tiles show, looked up once per configuration.
+ *
+ * Tiles read labels and descriptions from here on every state update instead of going to the
+ * resources. A string is the same instance until the configuration changes, e.g. the locale or
+ * the font scale, so a tile can tell whether a label changed by comparing references.
+ */
+@SysUISingleton
+public class FortuneTileStrings implements ConfigurationListener {
+
+    private final Context mContext;
+    // Only accessed on the main thread.
+    private final Configuration mConfig;
+
+    // Replaced on configuration changes, entries are guarded by the table itself.
+    private volatile SparseArray<String> mStrings = new SparseArray<>();
+
+    @Inject
+    public FortuneTileStrings(Context context, ConfigurationController configurationController) {
+        mContext = context;
+        mConfig = new Configuration(context.getResources().getConfiguration());
+        configurationController.addCallback(this);
+    }
+
+    /** Returns the string {@code resId} for the current configuration. */
+    @NonNull
+    public String get(@StringRes int resId) {
+        final SparseArray<String> strings = mStrings;
+        synchronized (strings) {
+            String string = strings.get(resId);
+            if (string == null) {
+                string = mContext.getString(resId);
+                strings.put(resId, string);
+            }
+            return string;
+        }
+    }
+
+    @Override
+    public void onConfigChanged(Configuration newConfig) {
+        if (mConfig.updateFrom(newConfig) != 0) {
+            // Lookups racing with this may still fill the old table, nobody reads it anymore.
+            mStrings = new SparseArray<>();
+        }
+    }
+}
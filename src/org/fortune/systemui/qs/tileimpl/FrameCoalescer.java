@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.view.Choreographer;
+
+import org.fortune.systemui.util.FortuneTrace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges bursts of {@link #schedule()} calls into a single run of the given action on the next
+ * main thread frame.
+ *
+ * Tiles use this for signal callbacks: the callback only updates a pending snapshot and schedules,
+ * and the action diffs that snapshot against the last published one before refreshing the tile.
+ * Requests, runs and the largest burst merged into one run are counted for the tile metrics,
+ * and the number of runs pending across all coalescers is a {@link FortuneTrace} counter.
+ */
+public final class FrameCoalescer implements Choreographer.FrameCallback {
+
+    private static final String PENDING_COUNTER = "Fortune:pendingRefreshes";
+    private static final AtomicInteger sPending = new AtomicInteger();
+
+    private final Choreographer mChoreographer;
+    private final Runnable mAction;
+
+    // Guarded by this.
+    private boolean mScheduled;
+    private long mRequests;
+    private long mRuns;
+    private int mBurst;
+    private int mMaxBurst;
+
+    public FrameCoalescer(Runnable action) {
+        this(Choreographer.getMainThreadInstance(), action);
+    }
+
+    public FrameCoalescer(Choreographer choreographer, Runnable action) {
+        mChoreographer = choreographer;
+        mAction = action;
+    }
+
+    /** Runs the action on the next frame, unless a run is already pending. */
+    public void schedule() {
+        synchronized (this) {
+            mRequests++;
+            mBurst++;
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        FortuneTrace.counter(PENDING_COUNTER, sPending.incrementAndGet());
+        mChoreographer.postFrameCallback(this);
+    }
+
+    /** Drops a pending run, if any. */
+    public void cancel() {
+        synchronized (this) {
+            if (!mScheduled) {
+                return;
+            }
+            mScheduled = false;
+            mBurst = 0;
+        }
+        FortuneTrace.counter(PENDING_COUNTER, sPending.decrementAndGet());
+        mChoreographer.removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            if (!mScheduled) {
+                // Cancelled after the frame callback was already dispatched.
+                return;
+            }
+            mScheduled = false;
+            mRuns++;
+            mMaxBurst = Math.max(mMaxBurst, mBurst);
+            mBurst = 0;
+        }
+        FortuneTrace.counter(PENDING_COUNTER, sPending.decrementAndGet());
+        mAction.run();
+    }
+
+    /** Number of {@link #schedule()} calls so far. */
+    public synchronized long getRequestCount() {
+        return mRequests;
+    }
+
+    /** Number of times the action ran, every other request was merged into one of those. */
+    public synchronized long getRunCount() {
+        return mRuns;
+    }
+
+    /** Most requests merged into a single run. */
+    public synchronized int getMaxBurst() {
+        return mMaxBurst;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tileimpl;
+
+import android.os.Handler;
+
+/**
+ * Tap coalescing for tiles that cycle through states on click.
+ *
+ * Every tap {@link #advance advances} the target, which the tile shows right away, but only the
+ * last target is committed once no tap came in for the settle window. Must only be used from the
+ * thread of the handler it was created with, which for tiles is the one clicks are handled on.
+ */
+public final class TapCoalescer {
+
+    /** Default time without taps after which the target is committed. */
+    public static final long DEFAULT_SETTLE_WINDOW_MS = 500;
+
+    public interface Committer {
+        /** Applies {@code target} to the system. */
+        void commit(int target);
+    }
+
+    private final Handler mHandler;
+    private final long mSettleWindowMs;
+    private final Committer mCommitter;
+    private final Runnable mCommitRunnable = this::flush;
+
+    private boolean mPending;
+    private int mTarget;
+
+    public TapCoalescer(Handler handler, Committer committer) {
+        this(handler, DEFAULT_SETTLE_WINDOW_MS, committer);
+    }
+
+    public TapCoalescer(Handler handler, long settleWindowMs, Committer committer) {
+        mHandler = handler;
+        mSettleWindowMs = settleWindowMs;
+        mCommitter = committer;
+    }
+
+    /** Whether a target is waiting to be committed. */
+    public boolean isPending() {
+        return mPending;
+    }
+
+    /** The target waiting to be committed, only valid while {@link #isPending()}. */
+    public int getTarget() {
+        return mTarget;
+    }
+
+    /** Sets a new target and restarts the settle window. */
+    public void advance(int target) {
+        mTarget = target;
+        mPending = true;
+        mHandler.removeCallbacks(mCommitRunnable);
+        mHandler.postDelayed(mCommitRunnable, mSettleWindowMs);
+    }
+
+    /** Commits the pending target right away, if any. */
+    public void flush() {
+        mHandler.removeCallbacks(mCommitRunnable);
+        if (!mPending) {
+            return;
+        }
+        mPending = false;
+        mCommitter.commit(mTarget);
+    }
+
+    /** Drops the pending target without committing it. */
+    public void cancel() {
+        mHandler.removeCallbacks(mCommitRunnable);
+        mPending = false;
+    }
+}
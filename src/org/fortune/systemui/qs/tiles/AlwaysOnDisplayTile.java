@@ -21,7 +21,6 @@ package org.fortune.systemui.qs.tiles;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.UserHandle;
 import android.provider.Settings;
 import android.service.quicksettings.Tile;
 
@@ -37,17 +36,22 @@ import com.android.systemui.plugins.qs.QSTile.State;
 import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
-import com.android.systemui.qs.UserSettingObserver;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
 import com.android.systemui.settings.UserTracker;
 import com.android.systemui.statusbar.policy.BatteryController;
-import com.android.systemui.util.settings.SecureSettings;
+
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.qs.tileimpl.TapCoalescer;
+import org.fortune.systemui.util.settings.SettingsCache;
 
 import javax.inject.Inject;
 
-public class AlwaysOnDisplayTile extends QSTileImpl<State> implements
+public class AlwaysOnDisplayTile extends FortuneQSTileImpl<State> implements
         BatteryController.BatteryStateChangeCallback {
 
     public static final String TILE_SPEC = "aod";
@@ -55,7 +59,17 @@ public class AlwaysOnDisplayTile extends QSTileImpl<State> implements
     private final Icon mIcon = ResourceIcon.get(R.drawable.ic_qs_aod);
     private final BatteryController mBatteryController;
 
-    private final UserSettingObserver mSetting;
+    private final SettingsCache mSettingsCache;
+    private final UserTracker mUserTracker;
+    private final TapCoalescer mTapCoalescer;
+    private boolean mListening;
+
+    private final SettingsCache.Callback mSettingsCallback = (key, userId) -> {
+        if ((key == SettingsCache.Key.DOZE_ALWAYS_ON || key == SettingsCache.Key.DOZE_ON_CHARGE)
+                && userId == mUserTracker.getUserId()) {
+            refreshState();
+        }
+    };
 
     @Inject
     public AlwaysOnDisplayTile(
@@ -68,35 +82,46 @@ public class AlwaysOnDisplayTile extends QSTileImpl<State> implements
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
             QSLogger qsLogger,
-            SecureSettings secureSettings,
+            SettingsCache settingsCache,
             BatteryController batteryController,
-            UserTracker userTracker
+            UserTracker userTracker,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
-
-        mSetting = new UserSettingObserver(secureSettings, mHandler, Settings.Secure.DOZE_ALWAYS_ON,
-                userTracker.getUserId()) {
-            @Override
-            protected void handleValueChanged(int value, boolean observedChange) {
-                handleRefreshState(value);
-            }
-        };
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
 
+        mSettingsCache = settingsCache;
+        mUserTracker = userTracker;
         mBatteryController = batteryController;
         batteryController.observe(getLifecycle(), this);
+        mTapCoalescer = new TapCoalescer(mHandler, this::setDozeState);
     }
 
     private int getDozeState() {
-        int dozeState = Settings.Secure.getIntForUser(mContext.getContentResolver(),
-                Settings.Secure.DOZE_ALWAYS_ON, 0, UserHandle.USER_CURRENT);
+        int dozeState = mSettingsCache.getInt(SettingsCache.Key.DOZE_ALWAYS_ON);
         if (dozeState == 0) {
-            dozeState = Settings.Secure.getIntForUser(mContext.getContentResolver(),
-                    Settings.Secure.DOZE_ON_CHARGE, 0, UserHandle.USER_CURRENT) == 1 ? 2 : 0;
+            dozeState = mSettingsCache.getInt(SettingsCache.Key.DOZE_ON_CHARGE) == 1 ? 2 : 0;
         }
         return dozeState;
     }
 
+    private int getDisplayedDozeState() {
+        return mTapCoalescer.isPending() ? mTapCoalescer.getTarget() : getDozeState();
+    }
+
+    private void setDozeState(int dozeState) {
+        // Both keys go out in one background write, the cache serves them to us meanwhile.
+        mSettingsCache.edit()
+                .putInt(SettingsCache.Key.DOZE_ALWAYS_ON, dozeState == 2 ? 0 : dozeState)
+                .putInt(SettingsCache.Key.DOZE_ON_CHARGE, dozeState == 2 ? 1 : 0)
+                .apply();
+        refreshState();
+    }
+
     @Override
     public void onPowerSaveChanged(boolean isPowerSave) {
         refreshState();
@@ -105,7 +130,11 @@ public class AlwaysOnDisplayTile extends QSTileImpl<State> implements
     @Override
     protected void handleDestroy() {
         super.handleDestroy();
-        mSetting.setListening(false);
+        mTapCoalescer.flush();
+        if (mListening) {
+            mListening = false;
+            mSettingsCache.removeCallback(mSettingsCallback);
+        }
     }
 
     @Override
@@ -123,23 +152,27 @@ public class AlwaysOnDisplayTile extends QSTileImpl<State> implements
     @Override
     public void handleSetListening(boolean listening) {
         super.handleSetListening(listening);
-        mSetting.setListening(listening);
+        if (mListening == listening) return;
+        mListening = listening;
+        if (listening) {
+            mSettingsCache.addCallback(mSettingsCallback);
+            refreshState();
+        } else {
+            mSettingsCache.removeCallback(mSettingsCallback);
+        }
     }
 
     @Override
     protected void handleUserSwitch(int newUserId) {
-        mSetting.setUserId(newUserId);
-        handleRefreshState(mSetting.getValue());
+        refreshState();
     }
 
     @Override
     protected void handleClick(@Nullable Expandable expandable) {
-        int dozeState = getDozeState();
+        int dozeState = getDisplayedDozeState();
         dozeState = dozeState < 2 ? dozeState + 1 : 0;
-        Settings.Secure.putIntForUser(mContext.getContentResolver(), Settings.Secure.DOZE_ALWAYS_ON,
-                dozeState == 2 ? 0 : dozeState, UserHandle.USER_CURRENT);
-        Settings.Secure.putIntForUser(mContext.getContentResolver(), Settings.Secure.DOZE_ON_CHARGE,
-                dozeState == 2 ? 1 : 0, UserHandle.USER_CURRENT);
+        // Quick taps only change what the tile shows, the last one is written once they settle.
+        mTapCoalescer.advance(dozeState);
         refreshState();
     }
 
@@ -150,27 +183,27 @@ public class AlwaysOnDisplayTile extends QSTileImpl<State> implements
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_aod_label);
+        return mStrings.get(R.string.quick_settings_aod_label);
     }
 
     @Override
     protected void handleUpdateState(State state, Object arg) {
         state.icon = mIcon;
-        state.label = mContext.getString(R.string.quick_settings_aod_label);
+        state.label = mStrings.get(R.string.quick_settings_aod_label);
 
-        int dozeState = getDozeState();
+        int dozeState = getDisplayedDozeState();
         switch (dozeState) {
             case 0:
                 state.state = Tile.STATE_INACTIVE;
-                state.secondaryLabel = mContext.getString(R.string.switch_bar_off);
+                state.secondaryLabel = mStrings.get(R.string.switch_bar_off);
                 break;
             case 1:
                 state.state = Tile.STATE_ACTIVE;
-                state.secondaryLabel = mContext.getString(R.string.switch_bar_on);
+                state.secondaryLabel = mStrings.get(R.string.switch_bar_on);
                 break;
             case 2:
                 state.state = Tile.STATE_ACTIVE;
-                state.secondaryLabel = mContext.getString(R.string.quick_settings_aod_secondary_label_on_at_charge);
+                state.secondaryLabel = mStrings.get(R.string.quick_settings_aod_secondary_label_on_at_charge);
                 break;
         }
     }
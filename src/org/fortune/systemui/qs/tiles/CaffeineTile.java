@@ -41,19 +41,31 @@ import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
 
+import org.fortune.systemui.broadcast.FortuneBroadcastDispatcher;
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.qs.tileimpl.TapCoalescer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import javax.inject.Inject;
 
 /** Quick settings tile: Caffeine **/
-public class CaffeineTile extends QSTileImpl<BooleanState> {
+public class CaffeineTile extends FortuneQSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "caffeine";
 
     private final Icon mIcon = ResourceIcon.get(R.drawable.ic_qs_caffeine);
 
-    private final PowerManager.WakeLock mWakeLock;
+    // Created on first use, so a tile that is never turned on doesn't allocate one.
+    private PowerManager.WakeLock mWakeLock;
     private int mSecondsRemaining;
     private int mDuration;
     private static final int[] DURATIONS = new int[] {
@@ -63,8 +75,19 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
         -1,       // infinity
     };
     private CountDownTimer mCountdownTimer = null;
+    // When the running countdown ends, in elapsed realtime.
+    private long mCountdownEndMillis;
+    // Caffeine that was on before SystemUI restarted. Only shown until the tile claims its
+    // snapshot, which turns it back on. -1 if none.
+    private int mRestoredDuration = -1;
+    private long mRestoredEndMillis = -1;
+    // Last formatted countdown, only accessed from handleUpdateState.
+    private int mRemainingTimeLabelSeconds;
+    private String mRemainingTimeLabel;
     public long mLastClickTime = -1;
     private final Receiver mReceiver = new Receiver();
+    private final FortuneBroadcastDispatcher mBroadcastDispatcher;
+    private final TapCoalescer mTapCoalescer;
 
     @Inject
     public CaffeineTile(
@@ -76,13 +99,71 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
             MetricsLogger metricsLogger,
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
-            QSLogger qsLogger
+            QSLogger qsLogger,
+            FortuneBroadcastDispatcher broadcastDispatcher,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
-        mWakeLock = mContext.getSystemService(PowerManager.class).newWakeLock(
-                PowerManager.FULL_WAKE_LOCK, "CaffeineTile");
-        mReceiver.init();
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
+        mBroadcastDispatcher = broadcastDispatcher;
+        mTapCoalescer = new TapCoalescer(mHandler, this::applyDuration);
+        restoreSnapshot();
+    }
+
+    @Override
+    protected void onSaveSnapshot(DataOutputStream out) throws IOException {
+        final boolean active = isWakeLockHeld();
+        out.writeInt(active ? mDuration : -1);
+        out.writeLong(active && mCountdownTimer != null ? mCountdownEndMillis : -1);
+    }
+
+    @Override
+    protected void onRestoreSnapshot(DataInputStream in, boolean fromThisBoot)
+            throws IOException {
+        final int duration = in.readInt();
+        final long endMillis = in.readLong();
+        // Caffeine doesn't survive a reboot, only a SystemUI restart.
+        if (!fromThisBoot || duration < 0 || duration >= DURATIONS.length) {
+            return;
+        }
+        final long seconds = endMillis == -1 ? -1
+                : (endMillis - SystemClock.elapsedRealtime()) / 1000;
+        if (endMillis != -1 && seconds <= 0) {
+            return;
+        }
+        mRestoredDuration = duration;
+        mRestoredEndMillis = endMillis;
+    }
+
+    @Override
+    protected void onClaimSnapshot() {
+        final int duration = mRestoredDuration;
+        if (duration == -1) {
+            return;
+        }
+        mRestoredDuration = -1;
+        final long seconds = getRestoredSecondsRemaining();
+        if (seconds == 0 || isWakeLockHeld() || mTapCoalescer.isPending()) {
+            // Ran out, or the user already changed it.
+            refreshState();
+            return;
+        }
+        mDuration = duration;
+        startCountDown(seconds);
+        acquireWakeLock();
+        refreshState();
+    }
+
+    /** Seconds left of the restored countdown, -1 if it has none and 0 once it ran out. */
+    private long getRestoredSecondsRemaining() {
+        if (mRestoredEndMillis == -1) {
+            return -1;
+        }
+        return Math.max(0, (mRestoredEndMillis - SystemClock.elapsedRealtime()) / 1000);
     }
 
     @Override
@@ -93,11 +174,58 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
     @Override
     protected void handleDestroy() {
         super.handleDestroy();
+        mTapCoalescer.cancel();
+        mRestoredDuration = -1;
         stopCountDown();
-        mReceiver.destroy();
-        if (mWakeLock.isHeld()) {
+        releaseWakeLock();
+    }
+
+    private boolean isWakeLockHeld() {
+        return mWakeLock != null && mWakeLock.isHeld();
+    }
+
+    private void acquireWakeLock() {
+        if (mWakeLock == null) {
+            mWakeLock = mContext.getSystemService(PowerManager.class).newWakeLock(
+                    PowerManager.FULL_WAKE_LOCK, "CaffeineTile");
+        }
+        if (!mWakeLock.isHeld()) {
+            mWakeLock.acquire();
+            // Screen off only matters while we keep the screen on.
+            mReceiver.init();
+        }
+    }
+
+    private void releaseWakeLock() {
+        if (isWakeLockHeld()) {
             mWakeLock.release();
+            mReceiver.destroy();
+        }
+    }
+
+    /** Index into {@link #DURATIONS} the tile shows, or -1 when caffeine is off. */
+    private int getDisplayedDuration() {
+        if (mTapCoalescer.isPending()) {
+            return mTapCoalescer.getTarget();
+        }
+        if (mRestoredDuration != -1 && getRestoredSecondsRemaining() != 0) {
+            return mRestoredDuration;
         }
+        return isWakeLockHeld() ? mDuration : -1;
+    }
+
+    /** Turns caffeine off for -1, otherwise (re)starts it for {@code DURATIONS[duration]}. */
+    private void applyDuration(int duration) {
+        mDuration = duration;
+        mRestoredDuration = -1;
+        if (duration == -1) {
+            stopCountDown();
+            releaseWakeLock();
+        } else {
+            startCountDown(DURATIONS[duration]);
+            acquireWakeLock();
+        }
+        refreshState();
     }
 
     @Override
@@ -105,35 +233,19 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
         // If last user clicks < 5 seconds
         // we cycle different duration
         // otherwise toggle on/off
-        if (mWakeLock.isHeld() && (mLastClickTime != -1) &&
+        final int duration = getDisplayedDuration();
+        final int newDuration;
+        if (duration != -1 && (mLastClickTime != -1) &&
                 (SystemClock.elapsedRealtime() - mLastClickTime < 5000)) {
-            // cycle duration
-            mDuration++;
-            if (mDuration >= DURATIONS.length) {
-                // all durations cycled, turn if off
-                mDuration = -1;
-                stopCountDown();
-                if (mWakeLock.isHeld()) {
-                    mWakeLock.release();
-                }
-            } else {
-                // change duration
-                startCountDown(DURATIONS[mDuration]);
-                if (!mWakeLock.isHeld()) {
-                    mWakeLock.acquire();
-                }
-            }
+            // cycle duration, all durations cycled turns it off
+            newDuration = duration + 1 < DURATIONS.length ? duration + 1 : -1;
         } else {
             // toggle
-            if (mWakeLock.isHeld()) {
-                mWakeLock.release();
-                stopCountDown();
-            } else {
-                mWakeLock.acquire();
-                mDuration = 0;
-                startCountDown(DURATIONS[mDuration]);
-            }
+            newDuration = duration != -1 ? -1 : 0;
         }
+        // Quick taps only change what the tile shows, the wake lock and timer are only touched
+        // once they settle.
+        mTapCoalescer.advance(newDuration);
         mLastClickTime = SystemClock.elapsedRealtime();
         refreshState();
     }
@@ -142,17 +254,13 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
     protected void handleLongClick(@Nullable Expandable expandable) {
         // Set duration to infinity on long click
         int infinityIndex = DURATIONS.length - 1;
-        if (mLastClickTime == infinityIndex) {
+        if (getDisplayedDuration() == infinityIndex) {
             // Already at infinity
             return;
         }
-        mDuration = infinityIndex;
-        startCountDown(DURATIONS[mDuration]);
-        if (!mWakeLock.isHeld()) {
-            mWakeLock.acquire();
-        }
+        mTapCoalescer.cancel();
+        applyDuration(infinityIndex);
         mLastClickTime = SystemClock.elapsedRealtime();
-        refreshState();
     }
 
     @Override
@@ -162,7 +270,7 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_caffeine_label);
+        return mStrings.get(R.string.quick_settings_caffeine_label);
     }
 
     private void startCountDown(long duration) {
@@ -172,6 +280,7 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
             // infinity timing, no need to start timer
             return;
         }
+        mCountdownEndMillis = SystemClock.elapsedRealtime() + duration * 1000;
         mCountdownTimer = new CountDownTimer(duration * 1000, 1000) {
             @Override
             public void onTick(long millisUntilFinished) {
@@ -181,8 +290,7 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
 
             @Override
             public void onFinish() {
-                if (mWakeLock.isHeld())
-                    mWakeLock.release();
+                releaseWakeLock();
                 refreshState();
             }
 
@@ -196,27 +304,53 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
         }
     }
 
-    private String formatValueWithRemainingTime() {
-        if (mSecondsRemaining == -1) {
+    static String formatValueWithRemainingTime(int secondsRemaining) {
+        if (secondsRemaining == -1) {
             return "\u221E"; // infinity
         }
-        return String.format("%02d:%02d",
-                        mSecondsRemaining / 60 % 60, mSecondsRemaining % 60);
+        // mm:ss by hand, String.format would create a Formatter and box both values every tick.
+        final int minutes = secondsRemaining / 60 % 60;
+        final int seconds = secondsRemaining % 60;
+        return new String(new char[] {
+                (char) ('0' + minutes / 10), (char) ('0' + minutes % 10), ':',
+                (char) ('0' + seconds / 10), (char) ('0' + seconds % 10) });
+    }
+
+    /**
+     * Formats {@code secondsRemaining}, reusing the last label when it didn't change. A countdown
+     * tick still allocates one String: the label is handed to the published state by reference,
+     * so it can't be a buffer that is rewritten in place.
+     */
+    private String getRemainingTimeLabel(int secondsRemaining) {
+        if (secondsRemaining != mRemainingTimeLabelSeconds || mRemainingTimeLabel == null) {
+            mRemainingTimeLabelSeconds = secondsRemaining;
+            mRemainingTimeLabel = formatValueWithRemainingTime(secondsRemaining);
+        }
+        return mRemainingTimeLabel;
     }
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
-        state.value = mWakeLock.isHeld();
+        final int duration = getDisplayedDuration();
+        state.value = duration != -1;
         state.icon = mIcon;
-        state.label = mContext.getString(R.string.quick_settings_caffeine_label);
+        state.label = mStrings.get(R.string.quick_settings_caffeine_label);
         if (state.value) {
-            state.secondaryLabel = formatValueWithRemainingTime();
-            state.contentDescription =  mContext.getString(
+            final int secondsRemaining;
+            if (mTapCoalescer.isPending()) {
+                secondsRemaining = DURATIONS[duration];
+            } else if (mRestoredDuration != -1 && !isWakeLockHeld()) {
+                secondsRemaining = (int) getRestoredSecondsRemaining();
+            } else {
+                secondsRemaining = mSecondsRemaining;
+            }
+            state.secondaryLabel = getRemainingTimeLabel(secondsRemaining);
+            state.contentDescription = mStrings.get(
                     R.string.accessibility_quick_settings_caffeine_on);
             state.state = Tile.STATE_ACTIVE;
         } else {
             state.secondaryLabel = null;
-            state.contentDescription =  mContext.getString(
+            state.contentDescription = mStrings.get(
                     R.string.accessibility_quick_settings_caffeine_off);
             state.state = Tile.STATE_INACTIVE;
         }
@@ -227,11 +361,11 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
             // Register for Intent broadcasts for...
             IntentFilter filter = new IntentFilter();
             filter.addAction(Intent.ACTION_SCREEN_OFF);
-            mContext.registerReceiver(this, filter, null, mHandler);
+            mBroadcastDispatcher.registerReceiver(this, filter, TILE_SPEC);
         }
 
         public void destroy() {
-            mContext.unregisterReceiver(this);
+            mBroadcastDispatcher.unregisterReceiver(this);
         }
 
         @Override
@@ -239,9 +373,9 @@ public class CaffeineTile extends QSTileImpl<BooleanState> {
             String action = intent.getAction();
             if (Intent.ACTION_SCREEN_OFF.equals(action)) {
                 // disable caffeine if user force off (power button)
+                mTapCoalescer.cancel();
                 stopCountDown();
-                if (mWakeLock.isHeld())
-                    mWakeLock.release();
+                releaseWakeLock();
                 refreshState();
             }
         }
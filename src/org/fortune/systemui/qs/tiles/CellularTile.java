@@ -23,15 +23,22 @@ import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
 import android.os.Handler;
+import android.os.HandlerExecutor;
+import android.os.LocaleList;
 import android.os.Looper;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.service.quicksettings.Tile;
+import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
+import android.telephony.TelephonyManager;
 import android.text.Html;
+import android.text.Spanned;
 import android.text.TextUtils;
+import android.text.format.Formatter;
+import android.util.LruCache;
 import android.view.WindowManager.LayoutParams;
 import android.widget.Switch;
 
@@ -42,6 +49,7 @@ import com.android.settingslib.net.DataUsageController;
 import com.android.systemui.Prefs;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.dagger.qualifiers.LongRunning;
 import com.android.systemui.dagger.qualifiers.Main;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
@@ -51,7 +59,6 @@ import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
 import com.android.systemui.statusbar.connectivity.IconState;
 import com.android.systemui.statusbar.connectivity.MobileDataIndicators;
@@ -60,19 +67,67 @@ import com.android.systemui.statusbar.connectivity.SignalCallback;
 import com.android.systemui.statusbar.phone.SystemUIDialog;
 import com.android.systemui.statusbar.policy.KeyguardStateController;
 
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.qs.tileimpl.FrameCoalescer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import javax.inject.Inject;
 
 /** Quick settings tile: Cellular **/
-public class CellularTile extends QSTileImpl<BooleanState> {
+public class CellularTile extends FortuneQSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "cell";
 
     private static final String ENABLE_SETTINGS_DATA_PLAN = "enable.settings.data.plan";
 
+    private static final int MOBILE_DATA_LABEL_CACHE_SIZE = 8;
+
     private final NetworkController mController;
     private final DataUsageController mDataController;
     private final KeyguardStateController mKeyguard;
     private final CellSignalCallback mSignalCallback = new CellSignalCallback();
+    private final TelephonyManager mTelephonyManager;
+    private final HandlerExecutor mUiExecutor;
+    private final DataEnabledCallback mDataEnabledCallback = new DataEnabledCallback();
+    // Subscription the data enabled callback is registered for, only accessed on the background
+    // looper.
+    private int mDataEnabledSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+
+    // Parsed secondary labels, only accessed from handleUpdateState on the background looper.
+    private final LruCache<MobileDataLabelKey, Spanned> mMobileDataLabels =
+            new LruCache<>(MOBILE_DATA_LABEL_CACHE_SIZE);
+    private final MobileDataLabelKey mMobileDataLabelProbe = new MobileDataLabelKey();
+    @Nullable
+    private LocaleList mMobileDataLabelLocales;
+
+    // Refreshed on the background looper whenever the SIM or subscriptions change.
+    private volatile boolean mMobileDataSupported;
+    // Whether mMobileDataSupported was read yet, only accessed on the background looper.
+    private boolean mMobileDataSupportedKnown;
+    // Loaded on the background looper when the tile first listens, so clicks never have to
+    // read prefs from disk.
+    private volatile boolean mHasTurnedOffMobileData;
+    private boolean mPrefsLoaded;
+
+    private final DataUsageCache mDataUsage;
+    private boolean mListening;
+    // Formatted usage and the label combined with it, only accessed from handleUpdateState.
+    private long mDataUsageLabelBytes = -1;
+    @Nullable
+    private String mDataUsageLabel;
+    @Nullable
+    private CharSequence mDataUsageTypeLabel;
+    @Nullable
+    private CharSequence mDataUsageSecondaryLabel;
 
     @Inject
     public CellularTile(
@@ -86,15 +141,45 @@ public class CellularTile extends QSTileImpl<BooleanState> {
             ActivityStarter activityStarter,
             QSLogger qsLogger,
             NetworkController networkController,
-            KeyguardStateController keyguardStateController
-
+            KeyguardStateController keyguardStateController,
+            @LongRunning Executor longRunningExecutor,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
         mController = networkController;
         mKeyguard = keyguardStateController;
         mDataController = mController.getMobileDataController();
+        mTelephonyManager = TelephonyManager.from(host.getContext());
+        mUiExecutor = new HandlerExecutor(mUiHandler);
         mController.observe(getLifecycle(), mSignalCallback);
+        trackCoalescer(mSignalCallback.mCoalescer);
+        mDataUsage = new DataUsageCache(mContext, mDataController, longRunningExecutor,
+                usedBytes -> refreshState());
+        restoreSnapshot();
+    }
+
+    @Override
+    protected void onSaveSnapshot(DataOutputStream out) throws IOException {
+        out.writeBoolean(mMobileDataSupported);
+        mSignalCallback.mPublishedInfo.writeTo(out);
+    }
+
+    @Override
+    protected void onRestoreSnapshot(DataInputStream in, boolean fromThisBoot)
+            throws IOException {
+        // The last signal callbacks, until the controller reports again.
+        final boolean supported = in.readBoolean();
+        final CallbackInfo info = new CallbackInfo();
+        info.readFrom(in);
+        if (!mMobileDataSupportedKnown) {
+            mMobileDataSupported = supported;
+        }
+        mUiHandler.post(() -> mSignalCallback.restore(info));
     }
 
     @Override
@@ -102,6 +187,54 @@ public class CellularTile extends QSTileImpl<BooleanState> {
         return new BooleanState();
     }
 
+    @Override
+    protected void handleSetListening(boolean listening) {
+        super.handleSetListening(listening);
+        mListening = listening;
+        if (listening) {
+            if (!mPrefsLoaded) {
+                // Loaded here rather than in the constructor, tiles that are created but
+                // never shown shouldn't read prefs from disk.
+                mPrefsLoaded = true;
+                mHasTurnedOffMobileData =
+                        Prefs.getBoolean(mContext, QS_HAS_TURNED_OFF_MOBILE_DATA, false);
+            }
+            mDataUsage.refreshIfStale();
+        }
+        updateDataEnabledCallback();
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mListening = false;
+        updateDataEnabledCallback();
+    }
+
+    /**
+     * Registers for data enabled changes of the default data subscription while listening, and
+     * re-reads the current value. The signal callback only hears about changes made through
+     * SystemUI and is not replayed, so it can't be the only source.
+     */
+    private void updateDataEnabledCallback() {
+        final int subId = mListening ? SubscriptionManager.getDefaultDataSubscriptionId()
+                : SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        if (subId != mDataEnabledSubId) {
+            if (mDataEnabledSubId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                mTelephonyManager.unregisterTelephonyCallback(mDataEnabledCallback);
+            }
+            mDataEnabledSubId = subId;
+            if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                mTelephonyManager.createForSubscriptionId(subId)
+                        .registerTelephonyCallback(mUiExecutor, mDataEnabledCallback);
+            }
+        }
+        if (mListening) {
+            final boolean enabled = mDataController.isMobileDataEnabled();
+            mUiHandler.post(() -> mSignalCallback.setMobileDataEnabled(enabled));
+        }
+    }
+
     @Override
     public Intent getLongClickIntent() {
         if (getState().state == Tile.STATE_UNAVAILABLE) {
@@ -115,7 +248,7 @@ public class CellularTile extends QSTileImpl<BooleanState> {
         if (getState().state == Tile.STATE_UNAVAILABLE) {
             return;
         }
-        if (mDataController.isMobileDataEnabled()) {
+        if (mSignalCallback.mPublishedInfo.mobileDataEnabled) {
             maybeShowDisableDialog();
         } else {
             mDataController.setMobileDataEnabled(true);
@@ -123,15 +256,16 @@ public class CellularTile extends QSTileImpl<BooleanState> {
     }
 
     private void maybeShowDisableDialog() {
-        if (Prefs.getBoolean(mContext, QS_HAS_TURNED_OFF_MOBILE_DATA, false)) {
+        if (mHasTurnedOffMobileData) {
             // Directly turn off mobile data if the user has seen the dialog before.
             mDataController.setMobileDataEnabled(false);
             return;
         }
-        String carrierName = mController.getMobileDataNetworkName();
+        String carrierName = mSignalCallback.mPublishedInfo.dataSubscriptionName != null
+                ? mSignalCallback.mPublishedInfo.dataSubscriptionName.toString() : null;
         boolean isInService = mController.isMobileDataNetworkInService();
         if (TextUtils.isEmpty(carrierName) || !isInService) {
-            carrierName = mContext.getString(R.string.mobile_data_disable_message_default_carrier);
+            carrierName = mStrings.get(R.string.mobile_data_disable_message_default_carrier);
         }
         AlertDialog dialog = new Builder(mContext)
                 .setTitle(R.string.mobile_data_disable_title)
@@ -141,6 +275,7 @@ public class CellularTile extends QSTileImpl<BooleanState> {
                         com.android.internal.R.string.alert_windows_notification_turn_off_action,
                         (d, w) -> {
                             mDataController.setMobileDataEnabled(false);
+                            mHasTurnedOffMobileData = true;
                             Prefs.putBoolean(mContext, QS_HAS_TURNED_OFF_MOBILE_DATA, true);
                         })
                 .create();
@@ -158,20 +293,18 @@ public class CellularTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_cellular_detail_title);
+        return mStrings.get(R.string.quick_settings_cellular_detail_title);
     }
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
         CallbackInfo cb = (CallbackInfo) arg;
         if (cb == null) {
-            cb = mSignalCallback.mInfo;
+            cb = mSignalCallback.mPublishedInfo;
         }
 
-        final Resources r = mContext.getResources();
-        state.label = r.getString(R.string.mobile_data);
-        boolean mobileDataEnabled = mDataController.isMobileDataSupported()
-                && mDataController.isMobileDataEnabled();
+        state.label = mStrings.get(R.string.mobile_data);
+        boolean mobileDataEnabled = mMobileDataSupported && cb.mobileDataEnabled;
         state.value = mobileDataEnabled;
         state.expandedAccessibilityClassName = Switch.class.getName();
         if (cb.noSim) {
@@ -182,20 +315,22 @@ public class CellularTile extends QSTileImpl<BooleanState> {
 
         if (cb.noSim) {
             state.state = Tile.STATE_UNAVAILABLE;
-            state.secondaryLabel = r.getString(
+            state.secondaryLabel = mStrings.get(
                     com.android.systemui.res.R.string.keyguard_missing_sim_message_short);
         } else if (cb.airplaneModeEnabled) {
             state.state = Tile.STATE_UNAVAILABLE;
-            state.secondaryLabel = r.getString(R.string.status_bar_airplane);
+            state.secondaryLabel = mStrings.get(R.string.status_bar_airplane);
         } else if (mobileDataEnabled) {
             state.state = Tile.STATE_ACTIVE;
-            state.secondaryLabel = appendMobileDataType(
+            state.secondaryLabel = appendDataUsage(getMobileDataLabel(
                     // Only show carrier name if there are more than 1 subscription
-                    cb.multipleSubs ? cb.dataSubscriptionName : "",
-                    getMobileDataContentName(cb));
+                    cb.multipleSubs ? cb.dataSubscriptionName : "", cb));
+            if (mListening) {
+                mDataUsage.refreshIfStale();
+            }
         } else {
             state.state = Tile.STATE_INACTIVE;
-            state.secondaryLabel = r.getString(R.string.cell_data_off);
+            state.secondaryLabel = mStrings.get(R.string.cell_data_off);
         }
 
         state.contentDescription = state.label;
@@ -207,27 +342,72 @@ public class CellularTile extends QSTileImpl<BooleanState> {
         }
     }
 
-    private CharSequence appendMobileDataType(CharSequence current, CharSequence dataType) {
+    /**
+     * Returns the secondary label for {@code carrier} and the data type of {@code cb}, reusing the
+     * parsed result as long as the carrier, data type and roaming state stay the same.
+     */
+    private CharSequence getMobileDataLabel(@Nullable CharSequence carrier, CallbackInfo cb) {
+        final LocaleList locales = mContext.getResources().getConfiguration().getLocales();
+        if (!locales.equals(mMobileDataLabelLocales)) {
+            mMobileDataLabels.evictAll();
+            mMobileDataLabelLocales = locales;
+        }
+        mMobileDataLabelProbe.set(carrier, cb.dataContentDescription, cb.roaming);
+        Spanned label = mMobileDataLabels.get(mMobileDataLabelProbe);
+        if (label == null) {
+            label = appendMobileDataType(mContext, carrier,
+                    getMobileDataContentName(mContext, cb.dataContentDescription, cb.roaming));
+            mMobileDataLabels.put(new MobileDataLabelKey(mMobileDataLabelProbe), label);
+        }
+        return label;
+    }
+
+    /** Appends the data used this cycle, if known, without ever waiting for a stats query. */
+    private CharSequence appendDataUsage(CharSequence typeLabel) {
+        final long usedBytes = mDataUsage.getUsedBytes();
+        if (usedBytes < 0) {
+            return typeLabel;
+        }
+        if (usedBytes != mDataUsageLabelBytes) {
+            mDataUsageLabelBytes = usedBytes;
+            mDataUsageLabel = mContext.getString(R.string.quick_settings_cellular_data_usage,
+                    Formatter.formatShortFileSize(mContext, usedBytes));
+            mDataUsageTypeLabel = null;
+        }
+        if (typeLabel != mDataUsageTypeLabel) {
+            mDataUsageTypeLabel = typeLabel;
+            mDataUsageSecondaryLabel = TextUtils.isEmpty(typeLabel)
+                    ? mDataUsageLabel
+                    : TextUtils.concat(typeLabel, ", ", mDataUsageLabel);
+        }
+        return mDataUsageSecondaryLabel;
+    }
+
+    /** Carrier and data type label. Pure, so it can be measured without a tile. */
+    static Spanned appendMobileDataType(Context context, CharSequence current,
+            CharSequence dataType) {
         if (TextUtils.isEmpty(dataType)) {
-            return Html.fromHtml(current.toString(), 0);
+            return Html.fromHtml(current != null ? current.toString() : "", 0);
         }
         if (TextUtils.isEmpty(current)) {
             return Html.fromHtml(dataType.toString(), 0);
         }
-        String concat = mContext.getString(R.string.mobile_carrier_text_format, current, dataType);
+        String concat = context.getString(R.string.mobile_carrier_text_format, current, dataType);
         return Html.fromHtml(concat, 0);
     }
 
-    private CharSequence getMobileDataContentName(CallbackInfo cb) {
-        if (cb.roaming && !TextUtils.isEmpty(cb.dataContentDescription)) {
-            String roaming = mContext.getString(R.string.data_connection_roaming);
-            String dataDescription = cb.dataContentDescription.toString();
-            return mContext.getString(R.string.mobile_data_text_format, roaming, dataDescription);
+    static CharSequence getMobileDataContentName(Context context,
+            @Nullable CharSequence dataContentDescription, boolean roaming) {
+        if (roaming && !TextUtils.isEmpty(dataContentDescription)) {
+            String roamingLabel = context.getString(R.string.data_connection_roaming);
+            String dataDescription = dataContentDescription.toString();
+            return context.getString(R.string.mobile_data_text_format, roamingLabel,
+                    dataDescription);
         }
-        if (cb.roaming) {
-            return mContext.getString(R.string.data_connection_roaming);
+        if (roaming) {
+            return context.getString(R.string.data_connection_roaming);
         }
-        return cb.dataContentDescription;
+        return dataContentDescription;
     }
 
     @Override
@@ -245,10 +425,137 @@ public class CellularTile extends QSTileImpl<BooleanState> {
         boolean noSim;
         boolean roaming;
         boolean multipleSubs;
+        boolean mobileDataEnabled;
+
+        /** Copies this into {@code other}, returning whether anything changed. */
+        boolean copyTo(CallbackInfo other) {
+            final boolean changed = airplaneModeEnabled != other.airplaneModeEnabled
+                    || !TextUtils.equals(dataSubscriptionName, other.dataSubscriptionName)
+                    || !TextUtils.equals(dataContentDescription, other.dataContentDescription)
+                    || noSim != other.noSim
+                    || roaming != other.roaming
+                    || multipleSubs != other.multipleSubs
+                    || mobileDataEnabled != other.mobileDataEnabled;
+            other.airplaneModeEnabled = airplaneModeEnabled;
+            other.dataSubscriptionName = dataSubscriptionName;
+            other.dataContentDescription = dataContentDescription;
+            other.noSim = noSim;
+            other.roaming = roaming;
+            other.multipleSubs = multipleSubs;
+            other.mobileDataEnabled = mobileDataEnabled;
+            return changed;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeBoolean(airplaneModeEnabled);
+            writeSnapshotString(out, dataSubscriptionName);
+            writeSnapshotString(out, dataContentDescription);
+            out.writeBoolean(noSim);
+            out.writeBoolean(roaming);
+            out.writeBoolean(multipleSubs);
+            out.writeBoolean(mobileDataEnabled);
+        }
+
+        void readFrom(DataInputStream in) throws IOException {
+            airplaneModeEnabled = in.readBoolean();
+            dataSubscriptionName = readSnapshotString(in);
+            dataContentDescription = readSnapshotString(in);
+            noSim = in.readBoolean();
+            roaming = in.readBoolean();
+            multipleSubs = in.readBoolean();
+            mobileDataEnabled = in.readBoolean();
+        }
+    }
+
+    /** (carrier, data type, roaming) tuple the parsed mobile data label depends on. */
+    private static final class MobileDataLabelKey {
+        @Nullable
+        private CharSequence mCarrier;
+        @Nullable
+        private CharSequence mDataType;
+        private boolean mRoaming;
+        private int mHash;
+
+        MobileDataLabelKey() {
+        }
+
+        MobileDataLabelKey(MobileDataLabelKey other) {
+            // Copies are stored in the cache, so don't hold on to mutable CharSequences.
+            set(other.mCarrier != null ? other.mCarrier.toString() : null,
+                    other.mDataType != null ? other.mDataType.toString() : null,
+                    other.mRoaming);
+        }
+
+        void set(@Nullable CharSequence carrier, @Nullable CharSequence dataType,
+                boolean roaming) {
+            mCarrier = carrier;
+            mDataType = dataType;
+            mRoaming = roaming;
+            mHash = 31 * (31 * hash(carrier) + hash(dataType)) + (roaming ? 1 : 0);
+        }
+
+        private static int hash(@Nullable CharSequence text) {
+            if (text == null) return 0;
+            int h = 0;
+            for (int i = 0, n = text.length(); i < n; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            return h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof MobileDataLabelKey)) return false;
+            MobileDataLabelKey other = (MobileDataLabelKey) o;
+            return mRoaming == other.mRoaming && mHash == other.mHash
+                    && TextUtils.equals(mCarrier, other.mCarrier)
+                    && TextUtils.equals(mDataType, other.mDataType);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
     }
 
     private final class CellSignalCallback implements SignalCallback {
+        // Updated by every callback, and published at most once per frame when it changed.
         private final CallbackInfo mInfo = new CallbackInfo();
+        private final CallbackInfo mPublishedInfo = new CallbackInfo();
+        private final FrameCoalescer mCoalescer = new FrameCoalescer(this::publish);
+        private final Runnable mUpdateMobileDataSupported = () -> {
+            final boolean supported = mDataController.isMobileDataSupported();
+            mMobileDataSupportedKnown = true;
+            if (supported != mMobileDataSupported) {
+                mMobileDataSupported = supported;
+                refreshState();
+            }
+            // The default data subscription may have moved.
+            updateDataEnabledCallback();
+        };
+        @Nullable
+        private CharSequence mLastQsDescription;
+
+        private void publish() {
+            if (mInfo.copyTo(mPublishedInfo)) {
+                refreshState(mPublishedInfo);
+            }
+        }
+
+        /** Publishes {@code info} from a snapshot, unless the controller already reported. */
+        private void restore(CallbackInfo info) {
+            if (mCoalescer.getRequestCount() == 0) {
+                info.copyTo(mInfo);
+                publish();
+            }
+        }
+
+        /** Re-reads the snapshot values that only change with the SIM or subscriptions. */
+        private void onSubscriptionsChanged() {
+            mInfo.dataSubscriptionName = mController.getMobileDataNetworkName();
+            mHandler.post(mUpdateMobileDataSupported);
+        }
 
         @Override
         public void setMobileDataIndicators(@NonNull MobileDataIndicators indicators) {
@@ -256,24 +563,49 @@ public class CellularTile extends QSTileImpl<BooleanState> {
                 // Not data sim, don't display.
                 return;
             }
-            mInfo.dataSubscriptionName = mController.getMobileDataNetworkName();
+            if (!TextUtils.equals(indicators.qsDescription, mLastQsDescription)) {
+                // The carrier name only changes along with the network name shown here.
+                mLastQsDescription = indicators.qsDescription;
+                mInfo.dataSubscriptionName = mController.getMobileDataNetworkName();
+            }
             mInfo.dataContentDescription = indicators.qsDescription != null
                     ? indicators.typeContentDescriptionHtml : null;
             mInfo.roaming = indicators.roaming;
-            mInfo.multipleSubs = mController.getNumberSubscriptions() > 1;
-            refreshState(mInfo);
+            mCoalescer.schedule();
+        }
+
+        @Override
+        public void setSubs(@NonNull List<SubscriptionInfo> subs) {
+            mInfo.multipleSubs = subs.size() > 1;
+            onSubscriptionsChanged();
+            mCoalescer.schedule();
+        }
+
+        @Override
+        public void setMobileDataEnabled(boolean enabled) {
+            mInfo.mobileDataEnabled = enabled;
+            mCoalescer.schedule();
         }
 
         @Override
         public void setNoSims(boolean show, boolean simDetected) {
             mInfo.noSim = show;
-            refreshState(mInfo);
+            onSubscriptionsChanged();
+            mCoalescer.schedule();
         }
 
         @Override
         public void setIsAirplaneMode(@NonNull IconState icon) {
             mInfo.airplaneModeEnabled = icon.visible;
-            refreshState(mInfo);
+            mCoalescer.schedule();
+        }
+    }
+
+    private final class DataEnabledCallback extends TelephonyCallback
+            implements TelephonyCallback.DataEnabledListener {
+        @Override
+        public void onDataEnabledChanged(boolean enabled, int reason) {
+            mSignalCallback.setMobileDataEnabled(enabled);
         }
     }
 
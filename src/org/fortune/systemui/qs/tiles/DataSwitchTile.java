@@ -4,14 +4,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.provider.Settings;
-import android.telephony.PhoneStateListener;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyCallback;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -25,6 +26,7 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.systemui.SysUIToast;
 import com.android.systemui.animation.Expandable;
 import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.dagger.qualifiers.LongRunning;
 import com.android.systemui.dagger.qualifiers.Main;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
@@ -33,39 +35,66 @@ import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 
 import com.android.systemui.res.R;
+
+import org.fortune.systemui.broadcast.FortuneBroadcastDispatcher;
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.qs.tileimpl.FrameCoalescer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
-public class DataSwitchTile extends QSTileImpl<BooleanState> {
+public class DataSwitchTile extends FortuneQSTileImpl<BooleanState> {
     public static final String TILE_SPEC = "dataswitch";
     private static final String SETTING_USER_PREF_DATA_SUB = "user_preferred_data_sub";
     private final SubscriptionManager mSubscriptionManager;
     private final TelephonyManager mTelephonyManager;
+    private final FortuneBroadcastDispatcher mBroadcastDispatcher;
+    private final DataSwitchTileLogger mLogger;
+    // Serial, switches run one after the other in click order.
+    private final Executor mSwitchExecutor;
 
     BroadcastReceiver mSimReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
-            Log.d(TAG, "mSimReceiver:onReceive");
-            refreshState();
+            mLogger.logSimStateChanged();
+            mRefreshCoalescer.schedule();
         }
     };
 
+    // SIM and call state can flap during hot-swap or poor coverage, refresh at most once a frame.
+    private final FrameCoalescer mRefreshCoalescer = new FrameCoalescer(this::refreshState);
+
     private boolean mCanSwitch = true;
 
-    private final PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
-        @Override
-        public void onCallStateChanged(int state, String incomingNumber) {
-            mCanSwitch = mTelephonyManager.getCallState() == TelephonyManager.CALL_STATE_IDLE;
-            refreshState();
-        }
-    };
+    private final CallStateCallback mCallStateCallback = new CallStateCallback();
+
+    private final SubscriptionManager.OnSubscriptionsChangedListener mSubscriptionsListener =
+            new SubscriptionManager.OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    updateSubscriptions();
+                }
+            };
+
+    private final HandlerExecutor mHandlerExecutor;
 
     private boolean mRegistered = false;
     private int mSimCount = 0;
 
+    // Active, non-opportunistic subscription ids in SIM slot order. Only touched on mHandler.
+    private int[] mSwitchableSubIds = new int[0];
+
     @Inject
     public DataSwitchTile(
             QSHost host,
@@ -76,18 +105,61 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
             MetricsLogger metricsLogger,
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
-            QSLogger qsLogger
+            QSLogger qsLogger,
+            FortuneBroadcastDispatcher broadcastDispatcher,
+            DataSwitchTileLogger logger,
+            @LongRunning Executor longRunningExecutor,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
+        mBroadcastDispatcher = broadcastDispatcher;
+        mLogger = logger;
+        mSwitchExecutor = longRunningExecutor;
         mSubscriptionManager = SubscriptionManager.from(host.getContext());
         mTelephonyManager = TelephonyManager.from(host.getContext());
+        mHandlerExecutor = new HandlerExecutor(mHandler);
+        trackCoalescer(mRefreshCoalescer);
+        restoreSnapshot();
+    }
+
+    @Override
+    protected void onSaveSnapshot(DataOutputStream out) throws IOException {
+        out.writeBoolean(mCanSwitch);
+        out.writeInt(mSwitchableSubIds.length);
+        for (int subId : mSwitchableSubIds) {
+            out.writeInt(subId);
+        }
+    }
+
+    @Override
+    protected void onRestoreSnapshot(DataInputStream in, boolean fromThisBoot)
+            throws IOException {
+        final boolean canSwitch = in.readBoolean();
+        final int count = in.readInt();
+        // Each id takes four bytes, a larger count can only come from a corrupt snapshot.
+        if (count < 0 || count > in.available() / 4) {
+            throw new IOException("Bad subscription count " + count);
+        }
+        final int[] subIds = new int[count];
+        for (int i = 0; i < subIds.length; i++) {
+            subIds[i] = in.readInt();
+        }
+        // Calls and subscription ids don't survive a reboot, and what we read since is newer.
+        if (fromThisBoot && !mRegistered) {
+            mCanSwitch = canSwitch;
+            mSwitchableSubIds = subIds;
+        }
     }
 
     @Override
     public boolean isAvailable() {
         int count = TelephonyManager.getDefault().getPhoneCount();
-        Log.d(TAG, "phoneCount: " + count);
+        mLogger.logPhoneCount(count);
         return count >= 2;
     }
 
@@ -98,25 +170,48 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
 
     @Override
     public void handleSetListening(boolean listening) {
+        super.handleSetListening(listening);
         if (listening) {
             if (!mRegistered) {
                 IntentFilter filter = new IntentFilter();
                 filter.addAction(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
-                mContext.registerReceiver(mSimReceiver, filter);
-                mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+                mBroadcastDispatcher.registerReceiver(mSimReceiver, filter, TILE_SPEC);
+                mTelephonyManager.registerTelephonyCallback(mHandlerExecutor, mCallStateCallback);
+                mSubscriptionManager.addOnSubscriptionsChangedListener(
+                        mHandlerExecutor, mSubscriptionsListener);
                 mRegistered = true;
             }
             refreshState();
         } else if (mRegistered) {
-            mContext.unregisterReceiver(mSimReceiver);
-            mTelephonyManager.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mBroadcastDispatcher.unregisterReceiver(mSimReceiver);
+            mRefreshCoalescer.cancel();
+            mTelephonyManager.unregisterTelephonyCallback(mCallStateCallback);
+            mSubscriptionManager.removeOnSubscriptionsChangedListener(mSubscriptionsListener);
             mRegistered = false;
         }
     }
 
+    private void updateSubscriptions() {
+        List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList(
+                true);
+        if (subInfoList == null) {
+            mSwitchableSubIds = new int[0];
+            return;
+        }
+        int[] subIds = new int[subInfoList.size()];
+        int count = 0;
+        for (SubscriptionInfo subInfo : subInfoList) {
+            // We never switch data to, or away from, opportunistic subscriptions.
+            if (!subInfo.isOpportunistic()) {
+                subIds[count++] = subInfo.getSubscriptionId();
+            }
+        }
+        mSwitchableSubIds = Arrays.copyOf(subIds, count);
+        mLogger.logSwitchableSubscriptions(mSwitchableSubIds);
+    }
+
     private void updateSimCount() {
         String simState = SystemProperties.get("gsm.sim.state");
-        Log.d(TAG, "DataSwitchTile:updateSimCount:simState=" + simState);
         mSimCount = 0;
         try {
             String[] sims = TextUtils.split(simState, ",");
@@ -130,26 +225,24 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
         } catch (Exception e) {
             Log.e(TAG, "Error to parse sim state");
         }
-        Log.d(TAG, "DataSwitchTile:updateSimCount:mSimCount=" + mSimCount);
+        mLogger.logSimCount(simState, mSimCount);
     }
 
     @Override
     public void handleClick(@Nullable Expandable expandable) {
         if (!mCanSwitch) {
-            Log.d(TAG, "Call state=" + mTelephonyManager.getCallState());
+            mLogger.logClickIgnored(mSimCount, false);
         } else if (mSimCount == 0) {
-            Log.d(TAG, "handleClick:no sim card");
-            SysUIToast.makeText(mContext, mContext.getString(R.string.qs_data_switch_toast_0),
+            mLogger.logClickIgnored(mSimCount, true);
+            SysUIToast.makeText(mContext, mStrings.get(R.string.qs_data_switch_toast_0),
                     Toast.LENGTH_LONG).show();
         } else if (mSimCount == 1) {
-            Log.d(TAG, "handleClick:only one sim card");
-            SysUIToast.makeText(mContext, mContext.getString(R.string.qs_data_switch_toast_1),
+            mLogger.logClickIgnored(mSimCount, true);
+            SysUIToast.makeText(mContext, mStrings.get(R.string.qs_data_switch_toast_1),
                     Toast.LENGTH_LONG).show();
         } else {
-            AsyncTask.execute(() -> {
-                toggleMobileDataEnabled();
-                refreshState();
-            });
+            toggleMobileDataEnabled();
+            refreshState();
         }
     }
 
@@ -160,7 +253,7 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.qs_data_switch_label);
+        return mStrings.get(R.string.qs_data_switch_label);
     }
 
     @Override
@@ -169,7 +262,7 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
         if (arg == null) {
             int defaultPhoneId = SubscriptionManager.getPhoneId(
                     SubscriptionManager.getDefaultDataSubscriptionId());
-            Log.d(TAG, "default data phone id=" + defaultPhoneId);
+            mLogger.logDefaultDataPhoneId(defaultPhoneId);
             activeSIMZero = defaultPhoneId == 0;
         } else {
             activeSIMZero = (Boolean) arg;
@@ -179,7 +272,7 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
             case 1:
                 state.icon = ResourceIcon.get(activeSIMZero ? R.drawable.ic_qs_data_switch_1
                         : R.drawable.ic_qs_data_switch_2);
-                state.secondaryLabel = mContext.getString(
+                state.secondaryLabel = mStrings.get(
                         activeSIMZero ? R.string.qs_data_switch_text_1
                                 : R.string.qs_data_switch_text_2);
                 state.value = false;
@@ -187,14 +280,14 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
             case 2:
                 state.icon = ResourceIcon.get(activeSIMZero ? R.drawable.ic_qs_data_switch_1
                         : R.drawable.ic_qs_data_switch_2);
-                state.secondaryLabel = mContext.getString(
+                state.secondaryLabel = mStrings.get(
                         activeSIMZero ? R.string.qs_data_switch_text_1
                                 : R.string.qs_data_switch_text_2);
                 state.value = true;
                 break;
             default:
                 state.icon = ResourceIcon.get(R.drawable.ic_qs_data_switch_1);
-                state.secondaryLabel = mContext.getString(R.string.qs_data_switch_text_1);
+                state.secondaryLabel = mStrings.get(R.string.qs_data_switch_text_1);
                 state.value = false;
                 break;
         }
@@ -203,42 +296,69 @@ public class DataSwitchTile extends QSTileImpl<BooleanState> {
             state.state = 0;
         } else if (!mCanSwitch) {
             state.state = 0;
-            Log.d(TAG, "call state isn't idle, set to unavailable.");
+            mLogger.logCallInProgress();
         } else {
             state.state = state.value ? 2 : 1;
         }
 
-        state.label = mContext.getString(R.string.qs_data_switch_label);
-        state.contentDescription = mContext.getString(
+        state.label = mStrings.get(R.string.qs_data_switch_label);
+        state.contentDescription = mStrings.get(
                 activeSIMZero ? R.string.qs_data_switch_changed_1
                         : R.string.qs_data_switch_changed_2);
     }
 
     /**
-     * Set whether to enable data for {@code subId}, also whether to disable data for other
-     * subscription
+     * Move mobile data to the next switchable subscription after the current default one,
+     * wrapping around, and disable data on every other switchable subscription. The target is
+     * picked on the tile's background looper, the binder calls and the settings write run on the
+     * serial long running executor, so consecutive switches are applied in click order without
+     * holding up the other tiles.
      */
     private void toggleMobileDataEnabled() {
-        // Get opposite slot 2 ^ 3 = 1, 1 ^ 3 = 2
-        int subId = SubscriptionManager.getDefaultDataSubscriptionId() ^ 3;
-        final TelephonyManager telephonyManager =
-                mTelephonyManager.createForSubscriptionId(subId);
-        telephonyManager.setDataEnabled(true);
+        if (mSwitchableSubIds.length == 0) {
+            updateSubscriptions();
+        }
+        final int[] subIds = mSwitchableSubIds;
+        if (subIds.length < 2) {
+            mLogger.logNotEnoughSubscriptions(subIds.length);
+            return;
+        }
+        mSwitchExecutor.execute(() -> switchDataTo(subIds));
+    }
+
+    private void switchDataTo(int[] subIds) {
+        final long startTime = SystemClock.elapsedRealtime();
+        // Read here rather than when clicked, so a switch still queued is taken into account.
+        final int currentSubId = SubscriptionManager.getDefaultDataSubscriptionId();
+        int next = 0;
+        for (int i = 0; i < subIds.length; i++) {
+            if (subIds[i] == currentSubId) {
+                next = (i + 1) % subIds.length;
+                break;
+            }
+        }
+        final int subId = subIds[next];
+
+        // Enable the target before moving the default to it so data never ends up disabled
+        // everywhere, then turn data off on the remaining subscriptions.
+        mTelephonyManager.createForSubscriptionId(subId).setDataEnabled(true);
         mSubscriptionManager.setDefaultDataSubId(subId);
         Settings.Global.putInt(mContext.getContentResolver(), SETTING_USER_PREF_DATA_SUB, subId);
-        Log.d(TAG, "Enabled subID: " + subId);
-
-        List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList(
-                true);
-        if (subInfoList != null) {
-            for (SubscriptionInfo subInfo : subInfoList) {
-                // We never disable mobile data for opportunistic subscriptions.
-                if (subInfo.getSubscriptionId() != subId && !subInfo.isOpportunistic()) {
-                    mTelephonyManager.createForSubscriptionId(
-                            subInfo.getSubscriptionId()).setDataEnabled(false);
-                    Log.d(TAG, "Disabled subID: " + subInfo.getSubscriptionId());
-                }
+        for (int otherSubId : subIds) {
+            if (otherSubId != subId) {
+                mTelephonyManager.createForSubscriptionId(otherSubId).setDataEnabled(false);
             }
         }
+        mLogger.logDataSwitched(currentSubId, subId, SystemClock.elapsedRealtime() - startTime);
+        refreshState();
+    }
+
+    private final class CallStateCallback extends TelephonyCallback
+            implements TelephonyCallback.CallStateListener {
+        @Override
+        public void onCallStateChanged(int state) {
+            mCanSwitch = state == TelephonyManager.CALL_STATE_IDLE;
+            mRefreshCoalescer.schedule();
+        }
     }
 }
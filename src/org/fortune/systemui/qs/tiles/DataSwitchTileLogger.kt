@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tiles
+
+import com.android.systemui.log.LogBuffer
+import com.android.systemui.log.core.LogLevel
+import javax.inject.Inject
+import org.fortune.systemui.log.dagger.FortuneLog
+
+private const val TAG = "DataSwitchTile"
+
+/** Logs of [DataSwitchTile], kept in the [FortuneLog] buffer. */
+class DataSwitchTileLogger @Inject constructor(@FortuneLog private val buffer: LogBuffer) {
+
+    fun logPhoneCount(phoneCount: Int) {
+        buffer.log(TAG, LogLevel.DEBUG, { int1 = phoneCount }, { "phoneCount: $int1" })
+    }
+
+    fun logSimStateChanged() {
+        buffer.log(TAG, LogLevel.DEBUG, {}, { "SIM state changed" })
+    }
+
+    fun logSwitchableSubscriptions(subIds: IntArray) {
+        buffer.log(
+            TAG,
+            LogLevel.DEBUG,
+            { str1 = subIds.contentToString() },
+            { "updateSubscriptions: switchable=$str1" }
+        )
+    }
+
+    fun logSimCount(simState: String, simCount: Int) {
+        buffer.log(
+            TAG,
+            LogLevel.DEBUG,
+            {
+                str1 = simState
+                int1 = simCount
+            },
+            { "updateSimCount: simState=$str1 simCount=$int1" }
+        )
+    }
+
+    fun logDefaultDataPhoneId(phoneId: Int) {
+        buffer.log(TAG, LogLevel.DEBUG, { int1 = phoneId }, { "default data phone id=$int1" })
+    }
+
+    fun logCallInProgress() {
+        buffer.log(TAG, LogLevel.DEBUG, {}, { "call state isn't idle, set to unavailable" })
+    }
+
+    fun logClickIgnored(simCount: Int, canSwitch: Boolean) {
+        buffer.log(
+            TAG,
+            LogLevel.DEBUG,
+            {
+                int1 = simCount
+                bool1 = canSwitch
+            },
+            { "handleClick: ignored, simCount=$int1 canSwitch=$bool1" }
+        )
+    }
+
+    fun logNotEnoughSubscriptions(count: Int) {
+        buffer.log(
+            TAG,
+            LogLevel.DEBUG,
+            { int1 = count },
+            { "toggleMobileDataEnabled: only $int1 switchable subscriptions" }
+        )
+    }
+
+    fun logDataSwitched(fromSubId: Int, toSubId: Int, durationMs: Long) {
+        buffer.log(
+            TAG,
+            LogLevel.DEBUG,
+            {
+                int1 = fromSubId
+                int2 = toSubId
+                long1 = durationMs
+            },
+            { "Switched data from subID $int1 to $int2 in ${long1}ms" }
+        )
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.qs.tiles;
+
+import android.app.usage.NetworkStats;
+import android.app.usage.NetworkStatsManager;
+import android.content.Context;
+import android.net.NetworkTemplate;
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import com.android.settingslib.net.DataUsageController;
+import com.android.settingslib.net.DataUsageUtils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Mobile data used in the current billing cycle, computed off the tile's looper.
+ *
+ * The first query for a cycle scans the whole cycle. Later refreshes only query the stats recorded
+ * since the previous checkpoint and add them up, and nothing is queried while the value is younger
+ * than {@link #TTL_MS}. Failed queries are retried with an exponential backoff, starting at
+ * {@link #RETRY_MIN_MS}, rather than on every tile update.
+ */
+final class DataUsageCache {
+
+    private static final String TAG = "DataUsageCache";
+
+    /** How long a computed value is served without querying again. */
+    private static final long TTL_MS = 60 * 1000;
+    /** Incremental sums drift with bucket proration, so rescan the whole cycle this often. */
+    private static final long FULL_SCAN_INTERVAL_MS = 60 * 60 * 1000;
+    /** Wait after the first failed query, doubled for every further failure. */
+    private static final long RETRY_MIN_MS = 5 * 1000;
+    private static final long RETRY_MAX_MS = 15 * 60 * 1000;
+
+    interface Callback {
+        /** Called on the query executor when the used bytes changed. */
+        void onDataUsageChanged(long usedBytes);
+    }
+
+    private final Context mContext;
+    private final DataUsageController mDataController;
+    private final NetworkStatsManager mNetworkStatsManager;
+    private final Executor mExecutor;
+    private final Callback mCallback;
+    private final Runnable mRefreshRunnable = this::refresh;
+
+    private volatile long mUsedBytes = -1;
+    // No query is started before this, set after every attempt.
+    private volatile long mNextRefreshElapsed = -1;
+    private boolean mRefreshPending;
+
+    // Checkpoint, only accessed on mExecutor.
+    private int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private NetworkTemplate mTemplate;
+    private long mCycleEnd;
+    private long mCheckpointTime;
+    private long mLastFullScanElapsed;
+    private int mFailures;
+
+    DataUsageCache(Context context, DataUsageController dataController, Executor executor,
+            Callback callback) {
+        mContext = context;
+        mDataController = dataController;
+        mNetworkStatsManager = context.getSystemService(NetworkStatsManager.class);
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /** Bytes used in the current cycle, or -1 if not known yet. Never blocks. */
+    long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /** Queues a refresh if the cached value is older than the TTL and no retry is backing off. */
+    void refreshIfStale() {
+        final long nextRefresh = mNextRefreshElapsed;
+        if (nextRefresh >= 0 && SystemClock.elapsedRealtime() < nextRefresh) {
+            return;
+        }
+        synchronized (this) {
+            if (mRefreshPending) {
+                return;
+            }
+            mRefreshPending = true;
+        }
+        mExecutor.execute(mRefreshRunnable);
+    }
+
+    private void refresh() {
+        synchronized (this) {
+            mRefreshPending = false;
+        }
+        final long now = System.currentTimeMillis();
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        final int subId = SubscriptionManager.getDefaultDataSubscriptionId();
+        long usedBytes;
+        try {
+            if (subId != mSubId || mTemplate == null || now >= mCycleEnd
+                    || nowElapsed - mLastFullScanElapsed >= FULL_SCAN_INTERVAL_MS) {
+                mSubId = subId;
+                mTemplate = DataUsageUtils.getMobileTemplate(mContext, subId);
+                final DataUsageController.DataUsageInfo info =
+                        mDataController.getDataUsageInfo(mTemplate);
+                if (info == null) {
+                    onRefreshFailed(nowElapsed);
+                    return;
+                }
+                usedBytes = info.usageLevel;
+                mCycleEnd = info.cycleEnd;
+                mLastFullScanElapsed = nowElapsed;
+            } else {
+                final NetworkStats.Bucket bucket = mNetworkStatsManager.querySummaryForDevice(
+                        mTemplate, mCheckpointTime, now);
+                usedBytes = mUsedBytes;
+                if (bucket != null) {
+                    usedBytes += bucket.getRxBytes() + bucket.getTxBytes();
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to query data usage", e);
+            onRefreshFailed(nowElapsed);
+            return;
+        }
+        mCheckpointTime = now;
+        mFailures = 0;
+        mNextRefreshElapsed = nowElapsed + TTL_MS;
+        if (usedBytes != mUsedBytes) {
+            mUsedBytes = usedBytes;
+            mCallback.onDataUsageChanged(usedBytes);
+        }
+    }
+
+    private void onRefreshFailed(long nowElapsed) {
+        mTemplate = null;
+        final long backoff = RETRY_MIN_MS << Math.min(mFailures, 10);
+        mFailures++;
+        mNextRefreshElapsed = nowElapsed + Math.min(backoff, RETRY_MAX_MS);
+    }
+}
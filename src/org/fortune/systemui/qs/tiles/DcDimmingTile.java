@@ -18,14 +18,11 @@ package org.fortune.systemui.qs.tiles;
 
 import static android.hardware.display.DcDimmingManager.MODE_AUTO_TIME;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.database.ContentObserver;
 import android.hardware.display.DcDimmingManager;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.UserHandle;
 import android.provider.Settings;
 import android.service.quicksettings.Tile;
 import android.text.TextUtils;
@@ -44,16 +41,35 @@ import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
+
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.util.settings.SettingsCache;
 
 import javax.inject.Inject;
 
 /** Quick settings tile: DC Dimming **/
-public class DcDimmingTile extends QSTileImpl<QSTile.BooleanState> {
+public class DcDimmingTile extends FortuneQSTileImpl<QSTile.BooleanState> {
 
     public static final String TILE_SPEC = "dc_dimming";
+    // Looked up on first use, availability doesn't change so it is only asked for once.
     private DcDimmingManager mDcDimmingManager;
+    private Boolean mAvailable;
     private final Icon mIcon = ResourceIcon.get(R.drawable.ic_dc_dimming_tile);
+    private final SettingsCache mSettingsCache;
+    private boolean mListening;
+
+    // The service mirrors its state into these settings, so they only tell us when to re-read it.
+    // Which user it writes them for is up to the service, so changes for any user count.
+    private final SettingsCache.Callback mSettingsCallback = (key, userId) -> {
+        if (key == SettingsCache.Key.DC_DIMMING_AUTO_MODE
+                || key == SettingsCache.Key.DC_DIMMING_STATE) {
+            refreshState();
+        }
+    };
 
     @Inject
     public DcDimmingTile(
@@ -65,20 +81,34 @@ public class DcDimmingTile extends QSTileImpl<QSTile.BooleanState> {
             MetricsLogger metricsLogger,
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
-            QSLogger qsLogger
+            QSLogger qsLogger,
+            SettingsCache settingsCache,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
-        mDcDimmingManager = (DcDimmingManager) mContext.getSystemService(Context.DC_DIM_SERVICE);
-        if (isAvailable()) {
-            SettingsObserver settingsObserver = new SettingsObserver(mainHandler);
-            settingsObserver.observe();
-        }
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
+        mSettingsCache = settingsCache;
     }
 
     @Override
     public boolean isAvailable() {
-        return mDcDimmingManager != null && mDcDimmingManager.isAvailable();
+        if (mAvailable == null) {
+            final DcDimmingManager manager = getDcDimmingManager();
+            mAvailable = manager != null && manager.isAvailable();
+        }
+        return mAvailable;
+    }
+
+    private DcDimmingManager getDcDimmingManager() {
+        if (mDcDimmingManager == null) {
+            mDcDimmingManager =
+                    (DcDimmingManager) mContext.getSystemService(Context.DC_DIM_SERVICE);
+        }
+        return mDcDimmingManager;
     }
 
     @Override
@@ -91,20 +121,21 @@ public class DcDimmingTile extends QSTileImpl<QSTile.BooleanState> {
         if (getState().state == Tile.STATE_UNAVAILABLE) {
             return;
         }
-        mDcDimmingManager.setDcDimming(!mState.value);
+        getDcDimmingManager().setDcDimming(!mState.value);
     }
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
-        final int mode = mDcDimmingManager.getAutoMode();
-        final boolean dcOn = mDcDimmingManager.isDcDimmingOn();
+        final DcDimmingManager manager = isAvailable() ? getDcDimmingManager() : null;
+        final int mode = manager != null ? manager.getAutoMode() : 0;
+        final boolean dcOn = manager != null && manager.isDcDimmingOn();
 
         state.value = dcOn;
-        state.label = mContext.getString(R.string.quick_settings_dc_dimming_label);
+        state.label = mStrings.get(R.string.quick_settings_dc_dimming_label);
         state.icon = mIcon;
         switch (mode) {
             case MODE_AUTO_TIME:
-                state.secondaryLabel = mContext.getResources().getString(dcOn
+                state.secondaryLabel = mStrings.get(dcOn
                     ? R.string.quick_settings_dark_mode_secondary_label_until_sunrise
                     : R.string.quick_settings_dark_mode_secondary_label_on_at_sunset);
                 break;
@@ -125,31 +156,29 @@ public class DcDimmingTile extends QSTileImpl<QSTile.BooleanState> {
 
     @Override
     protected void handleSetListening(boolean listening) {
+        super.handleSetListening(listening);
+        if (mListening == listening || !isAvailable()) return;
+        mListening = listening;
+        if (listening) {
+            mSettingsCache.addCallback(mSettingsCallback);
+            // Changes made while we weren't listening were missed.
+            refreshState();
+        } else {
+            mSettingsCache.removeCallback(mSettingsCallback);
+        }
     }
 
     @Override
-    public CharSequence getTileLabel() {
-        return getState().label;
-    }
-
-    private class SettingsObserver extends ContentObserver {
-        SettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    Settings.System.DC_DIMMING_AUTO_MODE), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    Settings.System.DC_DIMMING_STATE), false, this,
-                    UserHandle.USER_ALL);
+    protected void handleDestroy() {
+        super.handleDestroy();
+        if (mListening) {
+            mListening = false;
+            mSettingsCache.removeCallback(mSettingsCallback);
         }
+    }
 
-        @Override
-        public void onChange(boolean selfChange) {
-            refreshState();
-        }
+    @Override
+    public CharSequence getTileLabel() {
+        return getState().label;
     }
 }
@@ -20,8 +20,6 @@ package org.fortune.systemui.qs.tiles;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.Settings;
-import android.provider.Settings.Global;
 import android.service.quicksettings.Tile;
 
 import androidx.annotation.Nullable;
@@ -36,17 +34,20 @@ import com.android.systemui.plugins.qs.QSTile.BooleanState;
 import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
-import com.android.systemui.qs.SettingObserver;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
-import com.android.systemui.settings.UserTracker;
-import com.android.systemui.util.settings.GlobalSettings;
+
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.util.settings.SettingsCache;
 
 import javax.inject.Inject;
 
 /** Quick settings tile: Heads up **/
-public class HeadsUpTile extends QSTileImpl<BooleanState> {
+public class HeadsUpTile extends FortuneQSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "heads_up";
 
@@ -55,7 +56,14 @@ public class HeadsUpTile extends QSTileImpl<BooleanState> {
     private static final Intent NOTIFICATION_SETTINGS =
             new Intent("android.settings.NOTIFICATION_SETTINGS");
 
-    private final SettingObserver mSetting;
+    private final SettingsCache mSettingsCache;
+    private boolean mListening;
+
+    private final SettingsCache.Callback mSettingsCallback = (key, userId) -> {
+        if (key == SettingsCache.Key.HEADS_UP_NOTIFICATIONS_ENABLED) {
+            refreshState();
+        }
+    };
 
     @Inject
     public HeadsUpTile(
@@ -68,18 +76,16 @@ public class HeadsUpTile extends QSTileImpl<BooleanState> {
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
             QSLogger qsLogger,
-            GlobalSettings globalSettings,
-            UserTracker userTracker
+            SettingsCache settingsCache,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
-
-        mSetting = new SettingObserver(globalSettings, mHandler, Global.HEADS_UP_NOTIFICATIONS_ENABLED, userTracker.getUserId()) {
-            @Override
-            protected void handleValueChanged(int value, boolean observedChange) {
-                handleRefreshState(value);
-            }
-        };
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
+        mSettingsCache = settingsCache;
     }
 
     @Override
@@ -89,7 +95,8 @@ public class HeadsUpTile extends QSTileImpl<BooleanState> {
 
     @Override
     protected void handleClick(@Nullable Expandable expandable) {
-        setEnabled(!mState.value);
+        // The cache has the new value right away, the write itself happens in the background.
+        setEnabled(!isEnabled());
         refreshState();
     }
 
@@ -98,25 +105,26 @@ public class HeadsUpTile extends QSTileImpl<BooleanState> {
         return NOTIFICATION_SETTINGS;
     }
 
+    private boolean isEnabled() {
+        return mSettingsCache.getInt(SettingsCache.Key.HEADS_UP_NOTIFICATIONS_ENABLED) != 0;
+    }
+
     private void setEnabled(boolean enabled) {
-        Settings.Global.putInt(mContext.getContentResolver(),
-                Settings.Global.HEADS_UP_NOTIFICATIONS_ENABLED,
-                enabled ? 1 : 0);
+        mSettingsCache.putInt(SettingsCache.Key.HEADS_UP_NOTIFICATIONS_ENABLED, enabled ? 1 : 0);
     }
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
-        final int value = arg instanceof Integer ? (Integer) arg : mSetting.getValue();
-        final boolean headsUp = value != 0;
+        final boolean headsUp = isEnabled();
         state.value = headsUp;
-        state.label = mContext.getString(R.string.quick_settings_heads_up_label);
+        state.label = mStrings.get(R.string.quick_settings_heads_up_label);
         state.icon = mIcon;
         if (headsUp) {
-            state.contentDescription =  mContext.getString(
+            state.contentDescription = mStrings.get(
                     R.string.accessibility_quick_settings_heads_up_on);
             state.state = Tile.STATE_ACTIVE;
         } else {
-            state.contentDescription =  mContext.getString(
+            state.contentDescription = mStrings.get(
                     R.string.accessibility_quick_settings_heads_up_off);
             state.state = Tile.STATE_INACTIVE;
         }
@@ -124,11 +132,29 @@ public class HeadsUpTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_heads_up_label);
+        return mStrings.get(R.string.quick_settings_heads_up_label);
     }
 
     @Override
     public void handleSetListening(boolean listening) {
-        // Do nothing
+        super.handleSetListening(listening);
+        if (mListening == listening) return;
+        mListening = listening;
+        if (listening) {
+            mSettingsCache.addCallback(mSettingsCallback);
+            // Changes made while we weren't listening were missed.
+            refreshState();
+        } else {
+            mSettingsCache.removeCallback(mSettingsCallback);
+        }
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        if (mListening) {
+            mListening = false;
+            mSettingsCache.removeCallback(mSettingsCallback);
+        }
     }
 }
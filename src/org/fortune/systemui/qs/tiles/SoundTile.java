@@ -16,11 +16,9 @@
 
 package org.fortune.systemui.qs.tiles;
 
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.os.Handler;
 import android.os.Looper;
@@ -34,7 +32,6 @@ import com.android.systemui.animation.Expandable;
 import com.android.systemui.Dependency;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.plugins.qs.QSTile.BooleanState;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.R;
 import com.android.systemui.dagger.qualifiers.Background;
 import com.android.systemui.dagger.qualifiers.Main;
@@ -44,22 +41,25 @@ import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.qs.logging.QSLogger;
 import com.android.systemui.qs.QsEventLogger;
 
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.qs.tileimpl.TapCoalescer;
+import org.fortune.systemui.volume.RingerModeRepository;
+
 import javax.inject.Inject;
 
-public class SoundTile extends QSTileImpl<BooleanState> {
+public class SoundTile extends FortuneQSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "sound";
 
-    private boolean mListening = false;
-
     private final AudioManager mAudioManager;
+    private final RingerModeRepository mRingerModeRepository;
 
-    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            refreshState();
-        }
-    };
+    private final RingerModeRepository.Callback mRingerModeCallback = ringerMode -> refreshState();
+    private final TapCoalescer mTapCoalescer;
 
     @Inject
     public SoundTile(
@@ -71,11 +71,22 @@ public class SoundTile extends QSTileImpl<BooleanState> {
             MetricsLogger metricsLogger,
             StatusBarStateController statusBarStateController,
             ActivityStarter activityStarter,
-            QSLogger qsLogger
+            QSLogger qsLogger,
+            RingerModeRepository ringerModeRepository,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
         mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+        mRingerModeRepository = ringerModeRepository;
+        mRingerModeRepository.observe(getLifecycle(), mRingerModeCallback);
+        // Committed through the repository, so the tile doesn't show the old mode again until the
+        // broadcast arrives.
+        mTapCoalescer = new TapCoalescer(mHandler, mRingerModeRepository::setRingerMode);
     }
 
     @Override
@@ -84,24 +95,19 @@ public class SoundTile extends QSTileImpl<BooleanState> {
     }
 
     @Override
-    public void handleSetListening(boolean listening) {
-        if (mAudioManager == null) {
-            return;
-        }
-        if (mListening == listening) return;
-        mListening = listening;
-        if (listening) {
-            final IntentFilter filter = new IntentFilter(
-                    AudioManager.INTERNAL_RINGER_MODE_CHANGED_ACTION);
-            mContext.registerReceiver(mReceiver, filter);
-        } else {
-            mContext.unregisterReceiver(mReceiver);
-        }
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mTapCoalescer.flush();
+    }
+
+    private int getRingerMode() {
+        return mTapCoalescer.isPending()
+                ? mTapCoalescer.getTarget() : mRingerModeRepository.getRingerMode();
     }
 
     @Override
     protected void handleClick(@Nullable Expandable expandable) {
-        int oldState = mAudioManager.getRingerModeInternal();
+        int oldState = getRingerMode();
         int newState = oldState;
         switch (oldState) {
             case AudioManager.RINGER_MODE_NORMAL:
@@ -114,7 +120,9 @@ public class SoundTile extends QSTileImpl<BooleanState> {
                 newState = AudioManager.RINGER_MODE_NORMAL;
                 break;
         }
-        mAudioManager.setRingerModeInternal(newState);
+        // Quick taps only change what the tile shows, the last one is applied once they settle.
+        mTapCoalescer.advance(newState);
+        refreshState();
     }
 
     @Override
@@ -124,7 +132,7 @@ public class SoundTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_sound_label);
+        return mStrings.get(R.string.quick_settings_sound_label);
     }
 
     @Override
@@ -133,20 +141,20 @@ public class SoundTile extends QSTileImpl<BooleanState> {
         if (mAudioManager == null) {
             return;
         }
-        switch (mAudioManager.getRingerModeInternal()) {
+        switch (getRingerMode()) {
             case AudioManager.RINGER_MODE_NORMAL:
                 state.icon = ResourceIcon.get(R.drawable.ic_qs_ringer_audible);
-                state.secondaryLabel = mContext.getString(R.string.quick_settings_sound_ring);
+                state.secondaryLabel = mStrings.get(R.string.quick_settings_sound_ring);
                 state.state = Tile.STATE_ACTIVE;
                 break;
             case AudioManager.RINGER_MODE_VIBRATE:
                 state.icon = ResourceIcon.get(R.drawable.ic_qs_ringer_vibrate);
-                state.secondaryLabel = mContext.getString(R.string.quick_settings_sound_vibrate);
+                state.secondaryLabel = mStrings.get(R.string.quick_settings_sound_vibrate);
                 state.state = Tile.STATE_INACTIVE;
                 break;
             case AudioManager.RINGER_MODE_SILENT:
                 state.icon = ResourceIcon.get(R.drawable.ic_qs_ringer_silent);
-                state.secondaryLabel = mContext.getString(R.string.quick_settings_sound_silent);
+                state.secondaryLabel = mStrings.get(R.string.quick_settings_sound_silent);
                 state.state = Tile.STATE_INACTIVE;
                 break;
         }
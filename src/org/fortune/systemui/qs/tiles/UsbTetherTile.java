@@ -41,39 +41,40 @@ import com.android.systemui.dagger.qualifiers.Main;
 import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.logging.QSLogger;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.plugins.ActivityStarter;
 import com.android.systemui.plugins.FalsingManager;
 import com.android.systemui.plugins.qs.QSTile.BooleanState;
 import com.android.systemui.plugins.statusbar.StatusBarStateController;
 import com.android.systemui.res.R;
 
+import org.fortune.systemui.broadcast.FortuneBroadcastDispatcher;
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+
 import javax.inject.Inject;
 
 /**
  * USB Tether quick settings tile
  */
-public class UsbTetherTile extends QSTileImpl<BooleanState> {
+public class UsbTetherTile extends FortuneQSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "usb_tether";
     private static final String TAG = "UsbTetherTile";
 
-    private boolean mListening, mUsbConnected, mUsbTetherEnabled;
+    private boolean mListening, mUsbConnected, mUsbTetherEnabled, mStickyStateRead;
 
     private final TetheringManager mTetheringManager;
+    private final FortuneBroadcastDispatcher mBroadcastDispatcher;
     private final OnStartTetheringCallback mTetheringCallback = new OnStartTetheringCallback();
     private final HandlerExecutor mHandlerExecutor = new HandlerExecutor(mHandler);
 
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            mUsbConnected = intent.getBooleanExtra(UsbManager.USB_CONNECTED, false);
-            if (mUsbConnected && mTetheringManager.isTetheringSupported()) {
-                mUsbTetherEnabled = intent.getBooleanExtra(UsbManager.USB_FUNCTION_RNDIS, false);
-            } else {
-                mUsbTetherEnabled = false;
-            }
-            refreshState();
+            updateUsbState(intent);
         }
     };
 
@@ -87,11 +88,18 @@ public class UsbTetherTile extends QSTileImpl<BooleanState> {
         MetricsLogger metricsLogger,
         StatusBarStateController statusBarStateController,
         ActivityStarter activityStarter,
-        QSLogger qsLogger
+        QSLogger qsLogger,
+        FortuneBroadcastDispatcher broadcastDispatcher,
+        FortuneTilePool tilePool,
+        FortuneTileMetrics metrics,
+        FortuneTileStateStore stateStore,
+        FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
         mTetheringManager = mContext.getSystemService(TetheringManager.class);
+        mBroadcastDispatcher = broadcastDispatcher;
     }
 
     public BooleanState newTileState() {
@@ -100,14 +108,37 @@ public class UsbTetherTile extends QSTileImpl<BooleanState> {
 
     @Override
     public void handleSetListening(boolean listening) {
+        super.handleSetListening(listening);
         if (mListening == listening) return;
         mListening = listening;
-        if (listening) {
+        if (listening && !mStickyStateRead) {
+            // Registered on first use for the lifetime of the tile, so opening QS again doesn't
+            // register again. The dispatcher doesn't replay the sticky broadcast, read it once,
+            // later changes reach mReceiver.
+            mStickyStateRead = true;
             final IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_STATE);
-            mContext.registerReceiver(mReceiver, filter);
+            mBroadcastDispatcher.registerReceiver(mReceiver, filter, TILE_SPEC);
+            final Intent intent = mContext.registerReceiver(null, filter);
+            if (intent != null) {
+                updateUsbState(intent);
+            }
+        }
+    }
+
+    @Override
+    protected void handleDestroy() {
+        super.handleDestroy();
+        mBroadcastDispatcher.unregisterReceiver(mReceiver);
+    }
+
+    private void updateUsbState(Intent intent) {
+        mUsbConnected = intent.getBooleanExtra(UsbManager.USB_CONNECTED, false);
+        if (mUsbConnected && mTetheringManager.isTetheringSupported()) {
+            mUsbTetherEnabled = intent.getBooleanExtra(UsbManager.USB_FUNCTION_RNDIS, false);
         } else {
-            mContext.unregisterReceiver(mReceiver);
+            mUsbTetherEnabled = false;
         }
+        refreshState();
     }
 
     @Override
@@ -128,7 +159,7 @@ public class UsbTetherTile extends QSTileImpl<BooleanState> {
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
         state.value = mUsbTetherEnabled;
-        state.label = mContext.getString(R.string.quick_settings_usb_tether_label);
+        state.label = mStrings.get(R.string.quick_settings_usb_tether_label);
         state.icon = ResourceIcon.get(R.drawable.ic_qs_usb_tether);
         state.state = !mUsbConnected ? Tile.STATE_UNAVAILABLE
                 : (mUsbTetherEnabled ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
@@ -136,7 +167,7 @@ public class UsbTetherTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_usb_tether_label);
+        return mStrings.get(R.string.quick_settings_usb_tether_label);
     }
 
     private class OnStartTetheringCallback implements TetheringManager.StartTetheringCallback {
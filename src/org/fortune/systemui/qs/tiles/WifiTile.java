@@ -45,7 +45,6 @@ import com.android.systemui.qs.QSHost;
 import com.android.systemui.qs.QsEventLogger;
 import com.android.systemui.qs.logging.QSLogger;
 import com.android.systemui.qs.tileimpl.QSIconViewImpl;
-import com.android.systemui.qs.tileimpl.QSTileImpl;
 import com.android.systemui.res.R;
 import com.android.systemui.statusbar.connectivity.AccessPointController;
 import com.android.systemui.statusbar.connectivity.NetworkController;
@@ -53,10 +52,21 @@ import com.android.systemui.statusbar.connectivity.SignalCallback;
 import com.android.systemui.statusbar.connectivity.WifiIcons;
 import com.android.systemui.statusbar.connectivity.WifiIndicators;
 
+import org.fortune.systemui.qs.tileimpl.FortuneQSTileImpl;
+import org.fortune.systemui.qs.tileimpl.FortuneTileMetrics;
+import org.fortune.systemui.qs.tileimpl.FortuneTilePool;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStateStore;
+import org.fortune.systemui.qs.tileimpl.FortuneTileStrings;
+import org.fortune.systemui.qs.tileimpl.FrameCoalescer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import javax.inject.Inject;
 
 /** Quick settings tile: Wifi **/
-public class WifiTile extends QSTileImpl<BooleanState> {
+public class WifiTile extends FortuneQSTileImpl<BooleanState> {
 
     public static final String TILE_SPEC = "wifi";
 
@@ -69,6 +79,23 @@ public class WifiTile extends QSTileImpl<BooleanState> {
     protected final WifiSignalCallback mSignalCallback = new WifiSignalCallback();
     private boolean mExpectDisabled;
 
+    // Everything below is only accessed from handleUpdateState on the background looper and
+    // lets steady state updates, e.g. signal strength changes, run without allocating.
+    private final String mSwitchClassName = Switch.class.getName();
+    private String mWifiLabel;
+    private String mTransientLabel;
+    private String mOpenSettingsDescription;
+    @Nullable
+    private String mSsid;
+    @Nullable
+    private String mUnquotedSsid;
+    private final StringBuilder mContentDescriptionBuilder = new StringBuilder();
+    private CharSequence mContentDescription;
+    @Nullable
+    private CharSequence mContentDescriptionSecondaryLabel;
+    private boolean mContentDescriptionShowsConnection;
+    private boolean mContentDescriptionValid;
+
     @Inject
     public WifiTile(
             QSHost host,
@@ -81,14 +108,35 @@ public class WifiTile extends QSTileImpl<BooleanState> {
             ActivityStarter activityStarter,
             QSLogger qsLogger,
             NetworkController networkController,
-            AccessPointController accessPointController
+            AccessPointController accessPointController,
+            FortuneTilePool tilePool,
+            FortuneTileMetrics metrics,
+            FortuneTileStateStore stateStore,
+            FortuneTileStrings strings
     ) {
         super(host, uiEventLogger, backgroundLooper, mainHandler, falsingManager, metricsLogger,
-                statusBarStateController, activityStarter, qsLogger);
+                statusBarStateController, activityStarter, qsLogger, tilePool, metrics,
+                stateStore, strings);
         mController = networkController;
         mWifiController = accessPointController;
         mController.observe(getLifecycle(), mSignalCallback);
+        trackCoalescer(mSignalCallback.mCoalescer);
         mStateBeforeClick.spec = "wifi";
+        restoreSnapshot();
+    }
+
+    @Override
+    protected void onSaveSnapshot(DataOutputStream out) throws IOException {
+        mSignalCallback.mPublishedInfo.writeTo(out, mContext.getResources());
+    }
+
+    @Override
+    protected void onRestoreSnapshot(DataInputStream in, boolean fromThisBoot)
+            throws IOException {
+        // The last signal callback, until the controller reports again.
+        final CallbackInfo info = new CallbackInfo();
+        info.readFrom(in, mContext.getResources());
+        mUiHandler.post(() -> mSignalCallback.restore(info));
     }
 
     @Override
@@ -134,13 +182,13 @@ public class WifiTile extends QSTileImpl<BooleanState> {
 
     @Override
     public CharSequence getTileLabel() {
-        return mContext.getString(R.string.quick_settings_wifi_label);
+        return mStrings.get(R.string.quick_settings_wifi_label);
     }
 
     @Override
     protected void handleUpdateState(BooleanState state, Object arg) {
         if (DEBUG) Log.d(TAG, "handleUpdateState arg=" + arg);
-        final CallbackInfo cb = mSignalCallback.mInfo;
+        final CallbackInfo cb = mSignalCallback.mPublishedInfo;
         if (mExpectDisabled) {
             if (cb.enabled) {
                 return; // Ignore updates until disabled event occurs.
@@ -148,59 +196,99 @@ public class WifiTile extends QSTileImpl<BooleanState> {
                 mExpectDisabled = false;
             }
         }
+        updateStringsIfNeeded();
+        updateSsidIfNeeded(cb.ssid);
         boolean transientEnabling = arg == ARG_SHOW_TRANSIENT_ENABLING;
         boolean wifiConnected = cb.enabled && (cb.wifiSignalIconId > 0)
                 && (cb.ssid != null || cb.wifiSignalIconId != WifiIcons.QS_WIFI_NO_NETWORK);
         boolean wifiNotConnected = (cb.ssid == null)
                 && (cb.wifiSignalIconId == WifiIcons.QS_WIFI_NO_NETWORK);
         boolean isTransient = transientEnabling || cb.isTransient;
-        state.secondaryLabel = getSecondaryLabel(isTransient, cb.statusLabel);
+        state.secondaryLabel = isTransient ? mTransientLabel : cb.statusLabel;
         state.state = Tile.STATE_ACTIVE;
         state.dualTarget = true;
         state.value = transientEnabling || cb.enabled;
-        final StringBuffer minimalContentDescription = new StringBuffer();
-        final StringBuffer minimalStateDescription = new StringBuffer();
-        final Resources r = mContext.getResources();
         if (isTransient) {
             state.icon = ResourceIcon.get(
                     com.android.internal.R.drawable.ic_signal_wifi_transient_animation);
-            state.label = r.getString(R.string.quick_settings_wifi_label);
+            state.label = mWifiLabel;
         } else if (!state.value) {
             state.state = Tile.STATE_INACTIVE;
             state.icon = ResourceIcon.get(WifiIcons.QS_WIFI_DISABLED);
-            state.label = r.getString(R.string.quick_settings_wifi_label);
+            state.label = mWifiLabel;
         } else if (wifiConnected) {
             state.icon = ResourceIcon.get(cb.wifiSignalIconId);
-            state.label = cb.ssid != null ? removeDoubleQuotes(cb.ssid) : getTileLabel();
+            state.label = mUnquotedSsid != null ? mUnquotedSsid : mWifiLabel;
         } else if (wifiNotConnected) {
             state.icon = ResourceIcon.get(WifiIcons.QS_WIFI_NO_NETWORK);
-            state.label = r.getString(R.string.quick_settings_wifi_label);
+            state.label = mWifiLabel;
         } else {
             state.icon = ResourceIcon.get(WifiIcons.QS_WIFI_NO_NETWORK);
-            state.label = r.getString(R.string.quick_settings_wifi_label);
+            state.label = mWifiLabel;
         }
-        minimalContentDescription.append(
-                mContext.getString(R.string.quick_settings_wifi_label)).append(",");
-        if (state.value) {
-            if (wifiConnected) {
-                minimalStateDescription.append(cb.wifiSignalContentDescription);
-                minimalContentDescription.append(removeDoubleQuotes(cb.ssid));
-                if (!TextUtils.isEmpty(state.secondaryLabel)) {
-                    minimalContentDescription.append(",").append(state.secondaryLabel);
-                }
-            }
+        final boolean showConnection = state.value && wifiConnected;
+        state.stateDescription = showConnection && cb.wifiSignalContentDescription != null
+                ? cb.wifiSignalContentDescription : "";
+        state.contentDescription = getContentDescription(showConnection, state.secondaryLabel);
+        state.dualLabelContentDescription = mOpenSettingsDescription;
+        state.expandedAccessibilityClassName = mSwitchClassName;
+    }
+
+    /** Reloads the labels this tile uses whenever the configuration has changed. */
+    private void updateStringsIfNeeded() {
+        // The shared strings are new instances after a configuration change.
+        final String wifiLabel = mStrings.get(R.string.quick_settings_wifi_label);
+        if (wifiLabel == mWifiLabel) {
+            return;
+        }
+        mWifiLabel = wifiLabel;
+        mTransientLabel = mStrings.get(R.string.quick_settings_wifi_secondary_label_transient);
+        mOpenSettingsDescription = mContext.getString(
+                R.string.accessibility_quick_settings_open_settings, mWifiLabel);
+        mContentDescriptionValid = false;
+    }
+
+    /** Strips the quotes from {@code ssid}, once per SSID change. */
+    private void updateSsidIfNeeded(@Nullable String ssid) {
+        if (TextUtils.equals(ssid, mSsid)) {
+            return;
         }
-        state.stateDescription = minimalStateDescription.toString();
-        state.contentDescription = minimalContentDescription.toString();
-        state.dualLabelContentDescription = r.getString(
-                R.string.accessibility_quick_settings_open_settings, getTileLabel());
-        state.expandedAccessibilityClassName = Switch.class.getName();
+        mSsid = ssid;
+        mUnquotedSsid = ssid != null ? removeDoubleQuotes(ssid) : null;
+        mContentDescriptionValid = false;
     }
 
-    private CharSequence getSecondaryLabel(boolean isTransient, String statusLabel) {
-        return isTransient
-                ? mContext.getString(R.string.quick_settings_wifi_secondary_label_transient)
-                : statusLabel;
+    /**
+     * Returns the content description, only rebuilding it when one of its parts changed. Signal
+     * strength is not part of it, so RSSI-only updates reuse the previous instance.
+     */
+    private CharSequence getContentDescription(boolean showConnection,
+            @Nullable CharSequence secondaryLabel) {
+        if (mContentDescriptionValid && showConnection == mContentDescriptionShowsConnection
+                && (!showConnection
+                        || TextUtils.equals(secondaryLabel, mContentDescriptionSecondaryLabel))) {
+            return mContentDescription;
+        }
+        final StringBuilder sb = mContentDescriptionBuilder;
+        sb.setLength(0);
+        sb.append(mWifiLabel).append(',');
+        if (showConnection) {
+            // Unknown while showing a restored state, the label already says Wi-Fi then.
+            if (mUnquotedSsid != null) {
+                sb.append(mUnquotedSsid);
+                if (!TextUtils.isEmpty(secondaryLabel)) {
+                    sb.append(',');
+                }
+            }
+            if (!TextUtils.isEmpty(secondaryLabel)) {
+                sb.append(secondaryLabel);
+            }
+        }
+        mContentDescription = sb.toString();
+        mContentDescriptionShowsConnection = showConnection;
+        mContentDescriptionSecondaryLabel = secondaryLabel;
+        mContentDescriptionValid = true;
+        return mContentDescription;
     }
 
     @Override
@@ -209,7 +297,7 @@ public class WifiTile extends QSTileImpl<BooleanState> {
     }
 
     @Nullable
-    private static String removeDoubleQuotes(String string) {
+    static String removeDoubleQuotes(String string) {
         if (string == null) return null;
         final int length = string.length();
         if ((length > 1) && (string.charAt(0) == '"') && (string.charAt(length - 1) == '"')) {
@@ -230,6 +318,58 @@ public class WifiTile extends QSTileImpl<BooleanState> {
         @Nullable
         public String statusLabel;
 
+        /** Copies this into {@code other}, returning whether anything changed. */
+        boolean copyTo(CallbackInfo other) {
+            final boolean changed = enabled != other.enabled
+                    || connected != other.connected
+                    || wifiSignalIconId != other.wifiSignalIconId
+                    || !TextUtils.equals(ssid, other.ssid)
+                    || !TextUtils.equals(wifiSignalContentDescription,
+                            other.wifiSignalContentDescription)
+                    || isTransient != other.isTransient
+                    || !TextUtils.equals(statusLabel, other.statusLabel);
+            other.enabled = enabled;
+            other.connected = connected;
+            other.wifiSignalIconId = wifiSignalIconId;
+            other.ssid = ssid;
+            other.wifiSignalContentDescription = wifiSignalContentDescription;
+            other.isTransient = isTransient;
+            other.statusLabel = statusLabel;
+            return changed;
+        }
+
+        /**
+         * Writes everything but the SSID, which is not kept on disk. The signal icon is written by
+         * name, since ids are only stable within one build of the APK.
+         */
+        void writeTo(DataOutputStream out, Resources res) throws IOException {
+            out.writeBoolean(enabled);
+            out.writeBoolean(connected);
+            String iconName = null;
+            if (wifiSignalIconId != 0) {
+                try {
+                    iconName = res.getResourceName(wifiSignalIconId);
+                } catch (Resources.NotFoundException e) {
+                    // Restored as no icon.
+                }
+            }
+            writeSnapshotString(out, iconName);
+            writeSnapshotString(out, wifiSignalContentDescription);
+            out.writeBoolean(isTransient);
+            writeSnapshotString(out, statusLabel);
+        }
+
+        void readFrom(DataInputStream in, Resources res) throws IOException {
+            enabled = in.readBoolean();
+            connected = in.readBoolean();
+            final String iconName = readSnapshotString(in);
+            wifiSignalIconId = iconName != null ? res.getIdentifier(iconName, null, null) : 0;
+            ssid = null;
+            wifiSignalContentDescription = readSnapshotString(in);
+            isTransient = in.readBoolean();
+            statusLabel = readSnapshotString(in);
+        }
+
         @Override
         public String toString() {
             return new StringBuilder("CallbackInfo[")
@@ -244,7 +384,24 @@ public class WifiTile extends QSTileImpl<BooleanState> {
     }
 
     protected final class WifiSignalCallback implements SignalCallback {
+        // Updated by every callback, and published at most once per frame when it changed.
         final CallbackInfo mInfo = new CallbackInfo();
+        final CallbackInfo mPublishedInfo = new CallbackInfo();
+        private final FrameCoalescer mCoalescer = new FrameCoalescer(this::publish);
+
+        private void publish() {
+            if (mInfo.copyTo(mPublishedInfo)) {
+                refreshState();
+            }
+        }
+
+        /** Publishes {@code info} from a snapshot, unless the controller already reported. */
+        private void restore(CallbackInfo info) {
+            if (mCoalescer.getRequestCount() == 0) {
+                info.copyTo(mInfo);
+                publish();
+            }
+        }
 
         @Override
         public void setWifiIndicators(@NonNull WifiIndicators indicators) {
@@ -259,7 +416,7 @@ public class WifiTile extends QSTileImpl<BooleanState> {
             mInfo.wifiSignalContentDescription = indicators.qsIcon.contentDescription;
             mInfo.isTransient = indicators.isTransient;
             mInfo.statusLabel = indicators.statusLabel;
-            refreshState();
+            mCoalescer.schedule();
         }
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.tristate
+
+import com.android.systemui.log.LogBuffer
+import com.android.systemui.log.core.LogLevel
+import javax.inject.Inject
+import org.fortune.systemui.log.dagger.FortuneLog
+
+private const val TAG = "TriStateUiController"
+
+/** Logs of [TriStateUiControllerImpl], kept in the [FortuneLog] buffer. */
+class TriStateLogger @Inject constructor(@FortuneLog private val buffer: LogBuffer) {
+
+    fun logOrientationListener(enable: Boolean, canDetect: Boolean) {
+        buffer.log(
+            TAG,
+            LogLevel.VERBOSE,
+            {
+                bool1 = enable
+                bool2 = canDetect
+            },
+            { "orientation listener enable=$bool1 canDetectOrientation=$bool2" }
+        )
+    }
+}
@@ -22,10 +22,7 @@ import static android.view.Surface.ROTATION_270;
 import static android.view.Surface.ROTATION_90;
 
 import android.app.Dialog;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.res.ColorStateList;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
@@ -35,7 +32,6 @@ import android.media.AudioManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.util.Log;
 import android.view.Display;
 import android.view.OrientationEventListener;
 import android.view.ViewGroup;
@@ -52,6 +48,10 @@ import com.android.systemui.plugins.VolumeDialogController.State;
 import com.android.systemui.statusbar.policy.ConfigurationController;
 import com.android.systemui.statusbar.policy.ConfigurationController.ConfigurationListener;
 
+import org.fortune.systemui.util.FortuneDispatchMonitor;
+import org.fortune.systemui.util.FortuneTrace;
+import org.fortune.systemui.volume.RingerModeRepository;
+
 import javax.inject.Inject;
 
 @SysUISingleton
@@ -121,6 +121,10 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         @Override
         public void onConfigurationChanged() {
             updateTheme();
+            // Resources may resolve differently now, reload them.
+            mShownIconId = 0;
+            mShownTextId = 0;
+            mShownBgId = 0;
             updateTriStateLayout();
         }
     };
@@ -130,6 +134,8 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
     private int mDialogPosition;
     private ViewGroup mDialogView;
     private final H mHandler;
+    private final FortuneDispatchMonitor.Tracker mDispatchTracker;
+    private final TriStateLogger mLogger;
     private UserActivityListener mListener;
     OrientationEventListener mOrientationListener;
     private int mOrientationType = 0;
@@ -141,15 +147,25 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
     private ImageView mTriStateIcon;
     private TextView mTriStateText;
     private int mTriStateMode = -1;
+    // What the dialog views currently show, so repeated layouts don't reload resources.
+    private int mShownIconId;
+    private int mShownTextId;
+    private int mShownBgId;
+    private boolean mThemeStale;
     private Window mWindow;
     private LayoutParams mWindowLayoutParams;
     private int mWindowType;
 
-    private final BroadcastReceiver mRingerStateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            updateRingerModeChanged();
+    private final RingerModeRepository mRingerModeRepository;
+    // Ringer mode changes carry the cookie of their trace slice, which ends once the dialog
+    // showing the new mode has drawn a frame. 0 when not traced.
+    private final RingerModeRepository.Callback mRingerModeCallback = ringerMode -> {
+        int cookie = 0;
+        if (FortuneTrace.isEnabled()) {
+            cookie = FortuneTrace.newCookie();
+            FortuneTrace.beginAsync(FortuneTrace.TRACK_TRI_STATE, "ringerModeChanged", cookie);
         }
+        mHandler.obtainMessage(MSG_STATE_CHANGE, ringerMode, cookie).sendToTarget();
     };
 
     private final class H extends Handler {
@@ -160,10 +176,20 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
             mUiController = uiController;
         }
 
+        @Override
+        public void dispatchMessage(Message msg) {
+            final boolean tracked = mDispatchTracker.begin(messageName(msg.what));
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                mDispatchTracker.end(tracked);
+            }
+        }
+
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_DIALOG_SHOW:
-                    mUiController.handleShow();
+                    mUiController.handleShow(msg.arg1);
                     return;
                 case MSG_DIALOG_DISMISS:
                     mUiController.handleDismiss();
@@ -172,7 +198,7 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
                     mUiController.handleResetTimeout();
                     return;
                 case MSG_STATE_CHANGE:
-                    mUiController.handleStateChanged();
+                    mUiController.handleStateChanged(msg.arg1, msg.arg2);
                     return;
                 default:
                     return;
@@ -182,8 +208,12 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
 
     @Inject
     public TriStateUiControllerImpl(Context context, VolumeDialogController volumeDialogController,
-            ConfigurationController configurationController) {
+            ConfigurationController configurationController,
+            RingerModeRepository ringerModeRepository, TriStateLogger logger,
+            FortuneDispatchMonitor dispatchMonitor) {
         mContext = context;
+        mLogger = logger;
+        mDispatchTracker = dispatchMonitor.newTracker(TAG);
         mHandler = new H(this);
         mOrientationListener = new OrientationEventListener(mContext, 3) {
             @Override
@@ -193,8 +223,23 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         };
         mVolumeDialogController = volumeDialogController;
         mConfigurationController = configurationController;
-        IntentFilter ringerChanged = new IntentFilter(AudioManager.RINGER_MODE_CHANGED_ACTION);
-        mContext.registerReceiver(mRingerStateReceiver, ringerChanged);
+        mRingerModeRepository = ringerModeRepository;
+    }
+
+    private static String messageName(int what) {
+        switch (what) {
+            case MSG_DIALOG_SHOW:
+                return "MSG_DIALOG_SHOW";
+            case MSG_DIALOG_DISMISS:
+                return "MSG_DIALOG_DISMISS";
+            case MSG_RESET_SCHEDULE:
+                return "MSG_RESET_SCHEDULE";
+            case MSG_STATE_CHANGE:
+                return "MSG_STATE_CHANGE";
+            default:
+                // Posted runnables, e.g. the volume dialog controller callbacks.
+                return "callback";
+        }
     }
 
     private void checkOrientationType() {
@@ -216,13 +261,14 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         mConfigurationController.addCallback(this);
         mVolumeDialogController.addCallback(mVolumeDialogCallback, mHandler);
         initDialog();
+        mRingerModeRepository.addCallback(mRingerModeCallback);
     }
 
     @Override
     public void destroy() {
         mConfigurationController.removeCallback(this);
         mVolumeDialogController.removeCallback(mVolumeDialogCallback);
-        mContext.unregisterReceiver(mRingerStateReceiver);
+        mRingerModeRepository.removeCallback(mRingerModeCallback);
     }
 
     private void initDialog() {
@@ -251,20 +297,27 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         mDialogView = (ViewGroup) mDialog.findViewById(R.id.tri_state_layout);
         mTriStateIcon = (ImageView) mDialog.findViewById(R.id.tri_state_icon);
         mTriStateText = (TextView) mDialog.findViewById(R.id.tri_state_text);
+        mShownIconId = 0;
+        mShownTextId = 0;
+        mShownBgId = 0;
         updateTheme();
     }
 
     public void show() {
-        mHandler.obtainMessage(MSG_DIALOG_SHOW, 0, 0).sendToTarget();
+        show(0);
+    }
+
+    private void show(int traceCookie) {
+        mHandler.obtainMessage(MSG_DIALOG_SHOW, traceCookie, 0).sendToTarget();
     }
 
     private void registerOrientationListener(boolean enable) {
-        if (mOrientationListener.canDetectOrientation() && enable) {
-            Log.v(TAG, "Can detect orientation");
+        final boolean canDetect = mOrientationListener.canDetectOrientation();
+        mLogger.logOrientationListener(enable, canDetect);
+        if (canDetect && enable) {
             mOrientationListener.enable();
             return;
         }
-        Log.v(TAG, "Cannot detect orientation");
         mOrientationListener.disable();
     }
 
@@ -384,10 +437,12 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
                         break;
                 }
                 if (mTriStateMode != -1) {
-                    if (mTriStateIcon != null) {
+                    if (mTriStateIcon != null && iconId != mShownIconId) {
+                        mShownIconId = iconId;
                         mTriStateIcon.setImageResource(iconId);
                     }
-                    if (mTriStateText != null) {
+                    if (mTriStateText != null && textId != mShownTextId) {
+                        mShownTextId = textId;
                         String inputText = res.getString(textId);
                         if (inputText != null && mTriStateText.length() == inputText.length()) {
                             StringBuilder sb = new StringBuilder();
@@ -397,7 +452,8 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
                         }
                         mTriStateText.setText(inputText);
                     }
-                    if (mDialogView != null) {
+                    if (mDialogView != null && bg != mShownBgId) {
+                        mShownBgId = bg;
                         mDialogView.setBackgroundDrawable(res.getDrawable(bg));
                     }
                     mDialogPosition = positionY2;
@@ -412,19 +468,15 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         }
     }
 
-    private void updateRingerModeChanged() {
-        mHandler.obtainMessage(MSG_STATE_CHANGE, 0, 0).sendToTarget();
-        if (mTriStateMode != -1) {
-            show();
-        }
-    }
-
-    private void handleShow() {
+    private void handleShow(int traceCookie) {
+        final boolean traced = FortuneTrace.beginSection("TriState#handleShow");
         mHandler.removeMessages(MSG_DIALOG_SHOW);
         mHandler.removeMessages(MSG_DIALOG_DISMISS);
         handleResetTimeout();
         if (!mShowing) {
-            updateTheme();
+            if (mThemeStale) {
+                updateTheme();
+            }
             registerOrientationListener(true);
             checkOrientationType();
             mShowing = true;
@@ -433,6 +485,11 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
                 mListener.onTriStateUserActivity();
             }
         }
+        if (traceCookie != 0) {
+            mDialogView.getViewTreeObserver().registerFrameCommitCallback(() ->
+                    FortuneTrace.endAsync(FortuneTrace.TRACK_TRI_STATE, traceCookie));
+        }
+        FortuneTrace.endSection(traced);
     }
 
     private void handleDismiss() {
@@ -445,16 +502,24 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         }
     }
 
-    private void handleStateChanged() {
-        AudioManager am = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
-        int ringerMode = am.getRingerModeInternal();
-        if (ringerMode != mTriStateMode) {
+    private void handleStateChanged(int ringerMode, int traceCookie) {
+        // The first state only initializes the layout, later ones come from the slider.
+        final boolean initialized = mTriStateMode != -1;
+        final boolean traced = FortuneTrace.beginSection("TriState#handleStateChanged");
+        final boolean changed = ringerMode != mTriStateMode;
+        if (changed) {
             mTriStateMode = ringerMode;
             updateTriStateLayout();
             if (mListener != null) {
                 mListener.onTriStateUserActivity();
             }
         }
+        if (initialized && changed) {
+            show(traceCookie);
+        } else if (traceCookie != 0) {
+            FortuneTrace.endAsync(FortuneTrace.TRACK_TRI_STATE, traceCookie);
+        }
+        FortuneTrace.endSection(traced);
     }
 
     public void handleResetTimeout() {
@@ -472,8 +537,18 @@ public class TriStateUiControllerImpl implements ConfigurationListener, TriState
         updateTriStateLayout();
     }
 
+    @Override
+    public void onUiModeChanged() {
+        mThemeStale = true;
+    }
+
+    @Override
+    public void onThemeChanged() {
+        mThemeStale = true;
+    }
+
     private void updateTheme() {
-        // Todo: Add some logic to update the theme only when a new theme is applied
+        mThemeStale = false;
         mIconColor = getAttrColor(android.R.attr.colorAccent);
         mTextColor = getAttrColor(android.R.attr.textColorPrimary);
         mBackgroundColor = getAttrColor(android.R.attr.colorPrimary);
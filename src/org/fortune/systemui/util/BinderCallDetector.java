@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.util;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.systemui.CoreStartable;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.statusbar.commandline.Command;
+import com.android.systemui.statusbar.commandline.CommandRegistry;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Reports binder transactions Fortune code makes on the main thread.
+ *
+ * While detection is on, transactions started on the main thread are attributed to the first
+ * {@code org.fortune} frame on the stack, and counted per class and per distinct stack. The first
+ * time a stack is seen it is logged, and everything is listed in the dump. The budget for main
+ * thread IPC in Fortune code is zero, so any entry here is a bug. Walking the stack is what costs,
+ * so it can be limited to every Nth main thread transaction. Detection is off unless
+ * {@code debug.fortune.systemui.binder_detector} is set or it is turned on with
+ * {@code adb shell cmd statusbar fortune-binder on}.
+ *
+ * The framework holds a single {@link Binder.ProxyTransactListener} per process, so other Fortune
+ * components that need to see transactions chain theirs through {@link #setDelegate}. The
+ * listener is only installed while detection is on or a delegate is set.
+ */
+@SysUISingleton
+public class BinderCallDetector implements CoreStartable, Command {
+
+    private static final String TAG = "BinderCallDetector";
+    private static final String COMMAND = "fortune-binder";
+    private static final String PROP_ENABLED = "debug.fortune.systemui.binder_detector";
+
+    private static final String FORTUNE_PACKAGE = "org.fortune.";
+    /** Frames kept below the Fortune frame, to see where the call came from. */
+    private static final int CALLER_FRAMES = 6;
+    /** Distinct stacks kept per class, further ones are only counted. */
+    private static final int MAX_STACKS_PER_CLASS = 8;
+
+    private final CommandRegistry mCommandRegistry;
+    private final Thread mMainThread = Looper.getMainLooper().getThread();
+
+    private volatile boolean mEnabled = SystemProperties.getBoolean(PROP_ENABLED, false);
+    // Stacks are walked for one in this many main thread transactions.
+    private volatile int mSampleEvery = 1;
+    private volatile Binder.ProxyTransactListener mDelegate;
+    // Guarded by this.
+    private boolean mInstalled;
+    // Only touched on the main thread, a stack walk must not count itself.
+    private boolean mNoting;
+    private long mMainThreadCalls;
+
+    // Guarded by itself.
+    private final ArrayMap<String, Offender> mOffenders = new ArrayMap<>();
+
+    private final Binder.ProxyTransactListener mListener = new Binder.ProxyTransactListener() {
+        @Override
+        public Object onTransactStarted(@NonNull IBinder binder, int transactionCode) {
+            final Binder.ProxyTransactListener delegate = mDelegate;
+            final Object session = delegate != null
+                    ? delegate.onTransactStarted(binder, transactionCode) : null;
+            if (mEnabled && Thread.currentThread() == mMainThread && !mNoting
+                    && ++mMainThreadCalls % mSampleEvery == 0) {
+                mNoting = true;
+                try {
+                    noteMainThreadTransaction(transactionCode);
+                } finally {
+                    mNoting = false;
+                }
+            }
+            return session;
+        }
+
+        @Override
+        public void onTransactEnded(@Nullable Object session) {
+            final Binder.ProxyTransactListener delegate = mDelegate;
+            if (delegate != null) {
+                delegate.onTransactEnded(session);
+            }
+        }
+    };
+
+    @Inject
+    public BinderCallDetector(CommandRegistry commandRegistry) {
+        mCommandRegistry = commandRegistry;
+    }
+
+    @Override
+    public void start() {
+        FortuneTrace.traceStart(TAG, () -> {
+            mCommandRegistry.registerCommand(COMMAND, () -> this);
+            updateListener();
+        });
+    }
+
+    /** Forwards every proxy transaction of the process to {@code delegate} as well. */
+    public void setDelegate(@Nullable Binder.ProxyTransactListener delegate) {
+        mDelegate = delegate;
+        // Don't depend on start() having run already.
+        updateListener();
+    }
+
+    /** Installs the process listener if anyone needs it, removes it otherwise. */
+    private synchronized void updateListener() {
+        final boolean needed = mEnabled || mDelegate != null;
+        if (needed != mInstalled) {
+            mInstalled = needed;
+            Binder.setProxyTransactListener(needed ? mListener : null);
+        }
+    }
+
+    private void noteMainThreadTransaction(int transactionCode) {
+        final StackTraceElement[] frames = new Throwable().getStackTrace();
+        int fortuneFrame = -1;
+        for (int i = 0; i < frames.length; i++) {
+            final String className = frames[i].getClassName();
+            if (className.startsWith(FORTUNE_PACKAGE)
+                    && !className.startsWith(BinderCallDetector.class.getName())) {
+                fortuneFrame = i;
+                break;
+            }
+        }
+        if (fortuneFrame == -1) {
+            // Not ours.
+            return;
+        }
+        // Skip our own frames and the binder proxy at the top.
+        int first = 0;
+        while (first < fortuneFrame
+                && (frames[first].getClassName().startsWith(BinderCallDetector.class.getName())
+                || frames[first].getClassName().startsWith("android.os.BinderProxy"))) {
+            first++;
+        }
+        final int last = Math.min(frames.length, fortuneFrame + CALLER_FRAMES + 1);
+        final StringBuilder stack = new StringBuilder("code=").append(transactionCode);
+        for (int i = first; i < last; i++) {
+            stack.append("\n      at ").append(frames[i]);
+        }
+        final String owner = frames[fortuneFrame].getClassName();
+        final String stackKey = stack.toString();
+        final boolean firstSeen;
+        synchronized (mOffenders) {
+            Offender offender = mOffenders.get(owner);
+            if (offender == null) {
+                offender = new Offender();
+                mOffenders.put(owner, offender);
+            }
+            firstSeen = offender.note(stackKey);
+        }
+        if (firstSeen) {
+            Log.w(TAG, "Binder call on the main thread from " + owner + ", " + stackKey);
+        }
+    }
+
+    @Override
+    public void execute(@NonNull PrintWriter pw, @NonNull List<String> args) {
+        if (args.isEmpty()) {
+            pw.println(TAG + ": enabled=" + mEnabled + " sampleEvery=" + mSampleEvery);
+            return;
+        }
+        switch (args.get(0)) {
+            case "on":
+                if (args.size() > 1) {
+                    try {
+                        mSampleEvery = Math.max(1, Integer.parseInt(args.get(1)));
+                    } catch (NumberFormatException e) {
+                        help(pw);
+                        return;
+                    }
+                }
+                mEnabled = true;
+                break;
+            case "off":
+                mEnabled = false;
+                break;
+            case "reset":
+                synchronized (mOffenders) {
+                    mOffenders.clear();
+                }
+                break;
+            default:
+                help(pw);
+                return;
+        }
+        updateListener();
+        pw.println(TAG + ": enabled=" + mEnabled + " sampleEvery=" + mSampleEvery);
+    }
+
+    @Override
+    public void help(@NonNull PrintWriter pw) {
+        pw.println("Usage: adb shell cmd statusbar " + COMMAND + " [on [sampleEvery]|off|reset]");
+        pw.println("Attributes binder calls on the main thread to the Fortune class making them,"
+                + " walking the stack of one in sampleEvery calls. They are shown in the SystemUI"
+                + " dump.");
+    }
+
+    @Override
+    public void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        pw.println(TAG + ": enabled=" + mEnabled + " sampleEvery=" + mSampleEvery);
+        synchronized (mOffenders) {
+            for (int i = 0; i < mOffenders.size(); i++) {
+                final Offender offender = mOffenders.valueAt(i);
+                pw.println("  " + mOffenders.keyAt(i) + ": calls=" + offender.calls
+                        + " untrackedStackCalls=" + offender.untrackedStackCalls);
+                for (int j = 0; j < offender.stacks.size(); j++) {
+                    pw.println("    count=" + offender.stacks.valueAt(j)[0] + " "
+                            + offender.stacks.keyAt(j));
+                }
+            }
+        }
+    }
+
+    private static final class Offender {
+        final ArrayMap<String, int[]> stacks = new ArrayMap<>();
+        long calls;
+        long untrackedStackCalls;
+
+        /** Counts a call from {@code stack}, returns true if the stack is new. */
+        boolean note(String stack) {
+            calls++;
+            final int[] count = stacks.get(stack);
+            if (count != null) {
+                count[0]++;
+                return false;
+            }
+            if (stacks.size() >= MAX_STACKS_PER_CLASS) {
+                untrackedStackCalls++;
+                return false;
+            }
+            stacks.put(stack, new int[] { 1 });
+            return true;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.systemui.CoreStartable;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.statusbar.commandline.Command;
+import com.android.systemui.statusbar.commandline.CommandRegistry;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Inject;
+
+/**
+ * Opt-in timing of the messages Fortune handlers dispatch.
+ *
+ * Handlers wrap each dispatch in {@link Tracker#begin} and {@link Tracker#end}. While monitoring
+ * is on, the handling time is recorded per component and message, and a watchdog thread snapshots
+ * the stack of any dispatch still running after the threshold. Dispatches over the threshold are
+ * logged, and the slowest ones are kept with their stacks for the dump. Monitoring is off unless
+ * {@code debug.fortune.systemui.dispatch_monitor} is set or it is turned on with
+ * {@code adb shell cmd statusbar fortune-dispatch on}, and while off a dispatch only costs a
+ * volatile read.
+ */
+@SysUISingleton
+public class FortuneDispatchMonitor implements CoreStartable, Command {
+
+    private static final String TAG = "FortuneDispatchMonitor";
+    private static final String COMMAND = "fortune-dispatch";
+    private static final String PROP_ENABLED = "debug.fortune.systemui.dispatch_monitor";
+
+    static final long DEFAULT_THRESHOLD_MS = 16;
+    /** Slow dispatches kept for the dump. */
+    private static final int MAX_OFFENDERS = 16;
+    /** Frames of a stack snapshot shown in the dump. */
+    private static final int MAX_DUMPED_FRAMES = 20;
+
+    private final CommandRegistry mCommandRegistry;
+
+    private volatile boolean mEnabled = SystemProperties.getBoolean(PROP_ENABLED, false);
+    private volatile long mThresholdMs = DEFAULT_THRESHOLD_MS;
+    // Created the first time something is monitored.
+    private volatile Handler mWatchdog;
+
+    // Per component and message, guarded by mStats together with mOffenders.
+    private final ArrayMap<String, ArrayMap<String, MessageStats>> mStats = new ArrayMap<>();
+    private final ArrayList<Offender> mOffenders = new ArrayList<>();
+
+    @Inject
+    public FortuneDispatchMonitor(CommandRegistry commandRegistry) {
+        mCommandRegistry = commandRegistry;
+    }
+
+    @Override
+    public void start() {
+        mCommandRegistry.registerCommand(COMMAND, () -> this);
+    }
+
+    /** Returns a tracker for the dispatches of one handler, named {@code component} in the dump. */
+    public Tracker newTracker(String component) {
+        return new Tracker(component);
+    }
+
+    private Handler getWatchdog() {
+        Handler watchdog = mWatchdog;
+        if (watchdog == null) {
+            synchronized (this) {
+                watchdog = mWatchdog;
+                if (watchdog == null) {
+                    final HandlerThread thread = new HandlerThread("FortuneDispatchWatchdog",
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    thread.start();
+                    watchdog = mWatchdog = new Handler(thread.getLooper());
+                }
+            }
+        }
+        return watchdog;
+    }
+
+    private void note(String component, String what, long durationUs,
+            StackTraceElement[] stack) {
+        final boolean slow = durationUs >= mThresholdMs * 1000;
+        synchronized (mStats) {
+            ArrayMap<String, MessageStats> componentStats = mStats.get(component);
+            if (componentStats == null) {
+                componentStats = new ArrayMap<>();
+                mStats.put(component, componentStats);
+            }
+            MessageStats stats = componentStats.get(what);
+            if (stats == null) {
+                stats = new MessageStats();
+                componentStats.put(what, stats);
+            }
+            stats.count++;
+            stats.totalUs += durationUs;
+            stats.maxUs = Math.max(stats.maxUs, durationUs);
+            if (!slow) {
+                return;
+            }
+            stats.slow++;
+            noteOffenderLocked(new Offender(component, what, durationUs,
+                    System.currentTimeMillis(), stack));
+        }
+        Log.w(TAG, component + " took " + durationUs / 1000 + "ms to handle " + what);
+    }
+
+    private void noteOffenderLocked(Offender offender) {
+        if (mOffenders.size() < MAX_OFFENDERS) {
+            mOffenders.add(offender);
+            return;
+        }
+        int fastest = 0;
+        for (int i = 1; i < mOffenders.size(); i++) {
+            if (mOffenders.get(i).durationUs < mOffenders.get(fastest).durationUs) {
+                fastest = i;
+            }
+        }
+        if (offender.durationUs > mOffenders.get(fastest).durationUs) {
+            mOffenders.set(fastest, offender);
+        }
+    }
+
+    @Override
+    public void execute(@NonNull PrintWriter pw, @NonNull List<String> args) {
+        if (args.isEmpty()) {
+            pw.println(TAG + ": enabled=" + mEnabled + " thresholdMs=" + mThresholdMs);
+            return;
+        }
+        switch (args.get(0)) {
+            case "on":
+                if (args.size() > 1) {
+                    try {
+                        mThresholdMs = Math.max(1, Long.parseLong(args.get(1)));
+                    } catch (NumberFormatException e) {
+                        help(pw);
+                        return;
+                    }
+                }
+                mEnabled = true;
+                break;
+            case "off":
+                mEnabled = false;
+                break;
+            case "reset":
+                synchronized (mStats) {
+                    mStats.clear();
+                    mOffenders.clear();
+                }
+                break;
+            default:
+                help(pw);
+                return;
+        }
+        pw.println(TAG + ": enabled=" + mEnabled + " thresholdMs=" + mThresholdMs);
+    }
+
+    @Override
+    public void help(@NonNull PrintWriter pw) {
+        pw.println("Usage: adb shell cmd statusbar " + COMMAND + " [on [thresholdMs]|off|reset]");
+        pw.println("Times the messages Fortune handlers dispatch, the slowest ones are shown in"
+                + " the SystemUI dump.");
+    }
+
+    @Override
+    public void dump(@NonNull PrintWriter pw, @NonNull String[] args) {
+        pw.println(TAG + ": enabled=" + mEnabled + " thresholdMs=" + mThresholdMs);
+        final Offender[] offenders;
+        synchronized (mStats) {
+            for (int i = 0; i < mStats.size(); i++) {
+                pw.println("  " + mStats.keyAt(i) + ":");
+                final ArrayMap<String, MessageStats> componentStats = mStats.valueAt(i);
+                for (int j = 0; j < componentStats.size(); j++) {
+                    final MessageStats stats = componentStats.valueAt(j);
+                    pw.println("    " + componentStats.keyAt(j) + ": count=" + stats.count
+                            + " avgUs=" + stats.totalUs / stats.count
+                            + " maxUs=" + stats.maxUs
+                            + " slow=" + stats.slow);
+                }
+            }
+            offenders = mOffenders.toArray(new Offender[0]);
+        }
+        Arrays.sort(offenders, (a, b) -> Long.compare(b.durationUs, a.durationUs));
+        pw.println("  slowest dispatches:");
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (Offender offender : offenders) {
+            pw.println("    " + format.format(new Date(offender.wallTimeMs)) + " "
+                    + offender.component + " " + offender.what
+                    + " durationMs=" + offender.durationUs / 1000);
+            if (offender.stack == null) {
+                continue;
+            }
+            final int frames = Math.min(offender.stack.length, MAX_DUMPED_FRAMES);
+            for (int i = 0; i < frames; i++) {
+                pw.println("        at " + offender.stack[i]);
+            }
+            if (offender.stack.length > frames) {
+                pw.println("        ...");
+            }
+        }
+    }
+
+    /**
+     * Times the dispatches of one handler. A dispatch must begin and end on the same thread, and
+     * a tracker only tracks one dispatch at a time.
+     */
+    public final class Tracker implements Runnable {
+        private final String mComponent;
+
+        // Guarded by this, written on the dispatching thread and read by the watchdog.
+        private Thread mThread;
+        private StackTraceElement[] mStack;
+        private String mWhat;
+        private long mStartNanos;
+
+        private Tracker(String component) {
+            mComponent = component;
+        }
+
+        /**
+         * Starts timing a dispatch of {@code what}, which should be a constant. Returns whether
+         * it is timed, to pass to {@link #end(boolean)}.
+         */
+        public boolean begin(String what) {
+            if (!mEnabled) {
+                return false;
+            }
+            final Handler watchdog = getWatchdog();
+            synchronized (this) {
+                mThread = Thread.currentThread();
+                mStack = null;
+                mWhat = what;
+                mStartNanos = SystemClock.elapsedRealtimeNanos();
+            }
+            watchdog.postDelayed(this, mThresholdMs);
+            return true;
+        }
+
+        public void end(boolean begun) {
+            if (!begun) {
+                return;
+            }
+            final long durationUs;
+            final StackTraceElement[] stack;
+            final String what;
+            synchronized (this) {
+                durationUs = (SystemClock.elapsedRealtimeNanos() - mStartNanos) / 1000;
+                stack = mStack;
+                what = mWhat;
+                mThread = null;
+                mStack = null;
+            }
+            mWatchdog.removeCallbacks(this);
+            note(mComponent, what, durationUs, stack);
+        }
+
+        /** Runs on the watchdog once a dispatch passed the threshold. */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mThread != null) {
+                    mStack = mThread.getStackTrace();
+                }
+            }
+        }
+    }
+
+    private static final class MessageStats {
+        long count;
+        long totalUs;
+        long maxUs;
+        long slow;
+    }
+
+    private static final class Offender {
+        final String component;
+        final String what;
+        final long durationUs;
+        final long wallTimeMs;
+        final StackTraceElement[] stack;
+
+        Offender(String component, String what, long durationUs, long wallTimeMs,
+                StackTraceElement[] stack) {
+            this.component = component;
+            this.what = what;
+            this.durationUs = durationUs;
+            this.wallTimeMs = wallTimeMs;
+            this.stack = stack;
+        }
+    }
+}
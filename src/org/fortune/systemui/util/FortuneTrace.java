@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.util;
+
+import android.os.SystemProperties;
+import android.os.Trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trace sections, async slices and counters of the Fortune components.
+ *
+ * Async slices are emitted on one named track per component, so a Perfetto trace shows tile
+ * clicks, tri-state events and startable initialization next to each other. Tracing is off unless
+ * {@code debug.fortune.systemui.trace} is set or it is turned on with
+ * {@code adb shell cmd statusbar fortune-trace on}, and while off every call is a single volatile
+ * read. Callers that build slice names should check {@link #isEnabled()} first.
+ */
+public final class FortuneTrace {
+
+    /** Track of tile clicks, from the click to the published state. */
+    public static final String TRACK_TILES = "Fortune:Tiles";
+    /** Track of tri-state events, from the ringer mode change to the dialog's frame. */
+    public static final String TRACK_TRI_STATE = "Fortune:TriState";
+    /** Track of the Fortune startables. */
+    public static final String TRACK_STARTABLES = "Fortune:Startables";
+
+    static final String PROP_ENABLED = "debug.fortune.systemui.trace";
+
+    private static final AtomicInteger sNextCookie = new AtomicInteger(1);
+    private static volatile boolean sEnabled = SystemProperties.getBoolean(PROP_ENABLED, false);
+
+    private FortuneTrace() {
+    }
+
+    /** Whether Fortune tracing is on and something is recording. */
+    public static boolean isEnabled() {
+        return sEnabled && Trace.isEnabled();
+    }
+
+    static boolean isToggledOn() {
+        return sEnabled;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /** Returns a cookie for a new async slice, never 0. */
+    public static int newCookie() {
+        final int cookie = sNextCookie.getAndIncrement();
+        return cookie != 0 ? cookie : sNextCookie.getAndIncrement();
+    }
+
+    /**
+     * Begins a section on the current thread. Returns whether it was begun, which has to be passed
+     * to {@link #endSection(boolean)} so that toggling in between does not unbalance the stack.
+     */
+    public static boolean beginSection(String name) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Trace.beginSection(name);
+        return true;
+    }
+
+    public static void endSection(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+
+    /** Begins the async slice {@code cookie} named {@code name} on {@code track}. */
+    public static void beginAsync(String track, String name, int cookie) {
+        if (isEnabled()) {
+            Trace.asyncTraceForTrackBegin(Trace.TRACE_TAG_APP, track, name, cookie);
+        }
+    }
+
+    /** Ends the async slice {@code cookie} on {@code track}. */
+    public static void endAsync(String track, int cookie) {
+        if (isEnabled()) {
+            Trace.asyncTraceForTrackEnd(Trace.TRACE_TAG_APP, track, cookie);
+        }
+    }
+
+    /** Sets the counter track {@code name} to {@code value}. */
+    public static void counter(String name, long value) {
+        if (isEnabled()) {
+            Trace.setCounter(name, value);
+        }
+    }
+
+    /** Runs {@code start} as a slice named {@code name} on the startables track. */
+    public static void traceStart(String name, Runnable start) {
+        if (!isEnabled()) {
+            start.run();
+            return;
+        }
+        final int cookie = newCookie();
+        Trace.asyncTraceForTrackBegin(Trace.TRACE_TAG_APP, TRACK_STARTABLES, name, cookie);
+        try {
+            start.run();
+        } finally {
+            Trace.asyncTraceForTrackEnd(Trace.TRACE_TAG_APP, TRACK_STARTABLES, cookie);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.util;
+
+import androidx.annotation.NonNull;
+
+import com.android.systemui.CoreStartable;
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.statusbar.commandline.Command;
+import com.android.systemui.statusbar.commandline.CommandRegistry;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/** {@code adb shell cmd statusbar fortune-trace on|off}, toggles {@link FortuneTrace}. */
+@SysUISingleton
+public class FortuneTraceCommand implements CoreStartable, Command {
+
+    private static final String NAME = "fortune-trace";
+
+    private final CommandRegistry mCommandRegistry;
+
+    @Inject
+    public FortuneTraceCommand(CommandRegistry commandRegistry) {
+        mCommandRegistry = commandRegistry;
+    }
+
+    @Override
+    public void start() {
+        mCommandRegistry.registerCommand(NAME, () -> this);
+    }
+
+    @Override
+    public void execute(@NonNull PrintWriter pw, @NonNull List<String> args) {
+        if (args.size() == 1 && "on".equals(args.get(0))) {
+            FortuneTrace.setEnabled(true);
+        } else if (args.size() == 1 && "off".equals(args.get(0))) {
+            FortuneTrace.setEnabled(false);
+        } else if (!args.isEmpty()) {
+            help(pw);
+            return;
+        }
+        pw.println("Fortune tracing is " + (FortuneTrace.isToggledOn() ? "on" : "off"));
+    }
+
+    @Override
+    public void help(@NonNull PrintWriter pw) {
+        pw.println("Usage: adb shell cmd statusbar " + NAME + " [on|off]");
+        pw.println("Turns Fortune trace sections, slices and counters on or off, or prints"
+                + " whether they are on. The default comes from " + FortuneTrace.PROP_ENABLED
+                + ".");
+    }
+}
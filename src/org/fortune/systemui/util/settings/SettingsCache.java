@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.util.settings;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.settings.UserTracker;
+import com.android.systemui.statusbar.policy.CallbackController;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+import javax.inject.Inject;
+
+/**
+ * Per-user read-through cache of the settings Fortune components read.
+ *
+ * The first read of a key for a user goes to SettingsProvider, later reads are served from memory
+ * until a single ContentObserver, registered for all keys and users, reports a change. Writes
+ * update the cache right away and are sent to SettingsProvider on the background executor. While
+ * a write of a key is in flight, changes reported for it don't drop the written value, so readers
+ * never see it flip back; once the write is done the next change notification confirms it.
+ */
+@SysUISingleton
+public class SettingsCache implements CallbackController<SettingsCache.Callback> {
+
+    private static final int NAMESPACE_SYSTEM = 0;
+    private static final int NAMESPACE_SECURE = 1;
+    private static final int NAMESPACE_GLOBAL = 2;
+
+    /** The settings served by this cache. */
+    public enum Key {
+        DOZE_ALWAYS_ON(NAMESPACE_SECURE, Settings.Secure.DOZE_ALWAYS_ON, 0),
+        DOZE_ON_CHARGE(NAMESPACE_SECURE, Settings.Secure.DOZE_ON_CHARGE, 0),
+        HEADS_UP_NOTIFICATIONS_ENABLED(NAMESPACE_GLOBAL,
+                Settings.Global.HEADS_UP_NOTIFICATIONS_ENABLED, 0),
+        DC_DIMMING_AUTO_MODE(NAMESPACE_SYSTEM, Settings.System.DC_DIMMING_AUTO_MODE, 0),
+        DC_DIMMING_STATE(NAMESPACE_SYSTEM, Settings.System.DC_DIMMING_STATE, 0),
+        SFPS_PERFORMANT_AUTH_ENABLED(NAMESPACE_SECURE,
+                Settings.Secure.SFPS_PERFORMANT_AUTH_ENABLED, -1);
+
+        final int namespace;
+        final String name;
+        final int defaultValue;
+
+        Key(int namespace, String name, int defaultValue) {
+            this.namespace = namespace;
+            this.name = name;
+            this.defaultValue = defaultValue;
+        }
+
+        Uri getUri() {
+            switch (namespace) {
+                case NAMESPACE_SECURE:
+                    return Settings.Secure.getUriFor(name);
+                case NAMESPACE_GLOBAL:
+                    return Settings.Global.getUriFor(name);
+                default:
+                    return Settings.System.getUriFor(name);
+            }
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the background thread after {@code key} changed for {@code userId}. Global
+         * settings are reported for {@link UserHandle#USER_SYSTEM}.
+         */
+        void onSettingChanged(Key key, int userId);
+    }
+
+    private static final Key[] KEYS = Key.values();
+
+    private final ContentResolver mContentResolver;
+    private final UserTracker mUserTracker;
+    private final Handler mBgHandler;
+    private final Executor mBgExecutor;
+    private final ArrayMap<Uri, Key> mUriToKey = new ArrayMap<>(KEYS.length);
+    private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+
+    private final Object mLock = new Object();
+    // Guarded by mLock.
+    private final SparseArray<UserValues> mValues = new SparseArray<>();
+    private boolean mObserving;
+
+    private final ContentObserver mObserver;
+
+    @Inject
+    public SettingsCache(Context context, UserTracker userTracker,
+            @Background Handler bgHandler, @Background Executor bgExecutor) {
+        mContentResolver = context.getContentResolver();
+        mUserTracker = userTracker;
+        mBgHandler = bgHandler;
+        mBgExecutor = bgExecutor;
+        for (Key key : KEYS) {
+            mUriToKey.put(key.getUri(), key);
+        }
+        mObserver = new ContentObserver(bgHandler) {
+            @Override
+            public void onChange(boolean selfChange, @NonNull Collection<Uri> uris, int flags,
+                    int userId) {
+                for (Uri uri : uris) {
+                    final Key key = mUriToKey.get(uri);
+                    if (key != null) {
+                        onSettingChanged(key, userId);
+                    }
+                }
+            }
+        };
+        mBgHandler.post(this::startObserving);
+    }
+
+    private void startObserving() {
+        for (int i = 0; i < mUriToKey.size(); i++) {
+            mContentResolver.registerContentObserver(mUriToKey.keyAt(i), false, mObserver,
+                    UserHandle.USER_ALL);
+        }
+        synchronized (mLock) {
+            mObserving = true;
+        }
+    }
+
+    /** Returns the value of {@code key} for the current user. */
+    public int getInt(Key key) {
+        return getInt(key, UserHandle.USER_CURRENT);
+    }
+
+    /** Returns the value of {@code key} for {@code userId}, which may be USER_CURRENT. */
+    public int getInt(Key key, int userId) {
+        userId = resolveUserId(key, userId);
+        final int version;
+        synchronized (mLock) {
+            final UserValues values = mValues.get(userId);
+            if (values != null && values.isValid(key)) {
+                return values.values[key.ordinal()];
+            }
+            version = values != null ? values.versions[key.ordinal()] : 0;
+        }
+        final int value = readFromProvider(key, userId);
+        synchronized (mLock) {
+            // Until the observer is registered we would not hear about changes, so don't cache.
+            if (mObserving) {
+                final UserValues values = getOrCreateUserValues(userId);
+                // Don't store the value if it was invalidated while we were reading it.
+                if (values.versions[key.ordinal()] == version) {
+                    values.set(key, value);
+                }
+            }
+        }
+        return value;
+    }
+
+    /** Sets {@code key} to {@code value} for the current user. */
+    public void putInt(Key key, int value) {
+        putInt(key, value, UserHandle.USER_CURRENT);
+    }
+
+    /**
+     * Sets {@code key} to {@code value} for {@code userId}. Reads return the new value right away,
+     * the write itself is done on the background executor.
+     */
+    public void putInt(Key key, int value, int userId) {
+        edit(userId).putInt(key, value).apply();
+    }
+
+    /** Starts a batch of writes for the current user. */
+    public Editor edit() {
+        return edit(UserHandle.USER_CURRENT);
+    }
+
+    /** Starts a batch of writes for {@code userId}, which may be USER_CURRENT. */
+    public Editor edit(int userId) {
+        return new Editor(userId);
+    }
+
+    @Override
+    public void addCallback(@NonNull Callback callback) {
+        synchronized (mCallbacks) {
+            if (!mCallbacks.contains(callback)) {
+                mCallbacks.add(callback);
+            }
+        }
+    }
+
+    @Override
+    public void removeCallback(@NonNull Callback callback) {
+        synchronized (mCallbacks) {
+            mCallbacks.remove(callback);
+        }
+    }
+
+    private void apply(Editor editor) {
+        final int count = editor.mCount;
+        final Key[] keys = Arrays.copyOf(editor.mKeys, count);
+        final int[] newValues = Arrays.copyOf(editor.mValues, count);
+        final int[] userIds = new int[count];
+        synchronized (mLock) {
+            for (int i = 0; i < count; i++) {
+                userIds[i] = resolveUserId(keys[i], editor.mUserId);
+                final UserValues values = getOrCreateUserValues(userIds[i]);
+                values.set(keys[i], newValues[i]);
+                // A read that started before this write must not store the old value over it.
+                values.versions[keys[i].ordinal()]++;
+                values.pendingWrites[keys[i].ordinal()]++;
+            }
+        }
+        mBgExecutor.execute(() -> {
+            for (int i = 0; i < count; i++) {
+                final boolean written = writeToProvider(keys[i], newValues[i], userIds[i]);
+                synchronized (mLock) {
+                    final UserValues values = mValues.get(userIds[i]);
+                    values.pendingWrites[keys[i].ordinal()]--;
+                    if (!written) {
+                        values.invalidate(keys[i]);
+                    }
+                }
+                if (!written) {
+                    // Nobody else will tell the listeners that the value they saw was not kept.
+                    dispatchSettingChanged(keys[i], userIds[i]);
+                }
+            }
+        });
+    }
+
+    private void onSettingChanged(Key key, int userId) {
+        userId = resolveUserId(key, userId);
+        synchronized (mLock) {
+            final UserValues values = mValues.get(userId);
+            // Keep a value we are still writing, the provider may not have it yet.
+            if (values != null && values.pendingWrites[key.ordinal()] == 0) {
+                values.invalidate(key);
+            }
+        }
+        dispatchSettingChanged(key, userId);
+    }
+
+    private void dispatchSettingChanged(Key key, int userId) {
+        final Callback[] callbacks;
+        synchronized (mCallbacks) {
+            callbacks = mCallbacks.toArray(new Callback[0]);
+        }
+        for (Callback callback : callbacks) {
+            callback.onSettingChanged(key, userId);
+        }
+    }
+
+    private int resolveUserId(Key key, int userId) {
+        if (key.namespace == NAMESPACE_GLOBAL) {
+            return UserHandle.USER_SYSTEM;
+        }
+        return userId == UserHandle.USER_CURRENT ? mUserTracker.getUserId() : userId;
+    }
+
+    private UserValues getOrCreateUserValues(int userId) {
+        UserValues values = mValues.get(userId);
+        if (values == null) {
+            values = new UserValues();
+            mValues.put(userId, values);
+        }
+        return values;
+    }
+
+    private int readFromProvider(Key key, int userId) {
+        switch (key.namespace) {
+            case NAMESPACE_SECURE:
+                return Settings.Secure.getIntForUser(mContentResolver, key.name,
+                        key.defaultValue, userId);
+            case NAMESPACE_GLOBAL:
+                return Settings.Global.getInt(mContentResolver, key.name, key.defaultValue);
+            default:
+                return Settings.System.getIntForUser(mContentResolver, key.name,
+                        key.defaultValue, userId);
+        }
+    }
+
+    private boolean writeToProvider(Key key, int value, int userId) {
+        switch (key.namespace) {
+            case NAMESPACE_SECURE:
+                return Settings.Secure.putIntForUser(mContentResolver, key.name, value, userId);
+            case NAMESPACE_GLOBAL:
+                return Settings.Global.putInt(mContentResolver, key.name, value);
+            default:
+                return Settings.System.putIntForUser(mContentResolver, key.name, value, userId);
+        }
+    }
+
+    /**
+     * A batch of writes. {@link #apply()} makes them visible to readers right away and sends them
+     * to SettingsProvider in a single background operation.
+     */
+    public final class Editor {
+        private final int mUserId;
+        private final Key[] mKeys = new Key[KEYS.length];
+        private final int[] mValues = new int[KEYS.length];
+        private int mCount;
+
+        private Editor(int userId) {
+            mUserId = userId;
+        }
+
+        public Editor putInt(Key key, int value) {
+            for (int i = 0; i < mCount; i++) {
+                if (mKeys[i] == key) {
+                    mValues[i] = value;
+                    return this;
+                }
+            }
+            mKeys[mCount] = key;
+            mValues[mCount] = value;
+            mCount++;
+            return this;
+        }
+
+        public void apply() {
+            if (mCount > 0) {
+                SettingsCache.this.apply(this);
+            }
+        }
+    }
+
+    /** Cached values of one user, indexed by {@link Key#ordinal()}. */
+    private static final class UserValues {
+        final int[] values = new int[KEYS.length];
+        // Bumped on every invalidation and write, so in-flight reads can tell they became stale.
+        final int[] versions = new int[KEYS.length];
+        // Writes handed to the background executor that did not reach the provider yet.
+        final int[] pendingWrites = new int[KEYS.length];
+        long validMask;
+
+        boolean isValid(Key key) {
+            return (validMask & (1L << key.ordinal())) != 0;
+        }
+
+        void set(Key key, int value) {
+            values[key.ordinal()] = value;
+            validMask |= 1L << key.ordinal();
+        }
+
+        void invalidate(Key key) {
+            validMask &= ~(1L << key.ordinal());
+            versions[key.ordinal()]++;
+        }
+    }
+}
@@ -22,6 +22,8 @@ import com.android.systemui.dagger.SysUISingleton;
 import com.android.systemui.volume.VolumeDialogComponent;
 import com.android.systemui.volume.VolumeUI;
 
+import org.fortune.systemui.util.FortuneTrace;
+
 import javax.inject.Inject;
 
 /**
@@ -35,4 +37,9 @@ public class FortuneVolumeUI extends VolumeUI {
             FortuneVolumeDialogComponent volumeDialogComponent) {
         super(context, volumeDialogComponent);
     }
+
+    @Override
+    public void start() {
+        FortuneTrace.traceStart("FortuneVolumeUI", super::start);
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2024 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fortune.systemui.volume;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.media.AudioManager;
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+
+import com.android.systemui.dagger.SysUISingleton;
+import com.android.systemui.dagger.qualifiers.Background;
+import com.android.systemui.statusbar.policy.CallbackController;
+
+import org.fortune.systemui.broadcast.FortuneBroadcastDispatcher;
+
+import java.util.ArrayList;
+
+import javax.inject.Inject;
+
+/**
+ * Single source of the internal ringer mode for Fortune components.
+ *
+ * While it has callbacks it holds one receiver for
+ * {@link AudioManager#INTERNAL_RINGER_MODE_CHANGED_ACTION} and takes the mode from the broadcast
+ * extra, so reading it doesn't go over binder. The mode is re-read once right after registering,
+ * since the broadcast is not sticky, and is only cached while registered; without callbacks every
+ * read goes to AudioManager. Callbacks are invoked on the background thread and are conflated: a
+ * burst of changes only delivers the latest mode.
+ */
+@SysUISingleton
+public class RingerModeRepository implements CallbackController<RingerModeRepository.Callback> {
+
+    private static final int RINGER_MODE_UNKNOWN = -1;
+
+    public interface Callback {
+        /** Called on the background thread with the latest internal ringer mode. */
+        void onRingerModeChanged(int ringerMode);
+    }
+
+    private final FortuneBroadcastDispatcher mBroadcastDispatcher;
+    private final Handler mBgHandler;
+    private final AudioManager mAudioManager;
+    private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+    private final ArrayList<Callback> mDispatchCallbacks = new ArrayList<>();
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final int ringerMode = intent.getIntExtra(AudioManager.EXTRA_RINGER_MODE,
+                    RINGER_MODE_UNKNOWN);
+            if (ringerMode == RINGER_MODE_UNKNOWN) {
+                return;
+            }
+            synchronized (mCallbacks) {
+                if (!mRegistered) {
+                    return;
+                }
+                mReceiverSeq++;
+                if (ringerMode == mRingerMode) {
+                    return;
+                }
+                mRingerMode = ringerMode;
+            }
+            scheduleDispatch();
+        }
+    };
+
+    private final Runnable mDispatchRunnable = this::dispatch;
+    private final Runnable mSyncRunnable = this::sync;
+
+    // Only known while registered, guarded by mCallbacks for writes.
+    private volatile int mRingerMode = RINGER_MODE_UNKNOWN;
+    private boolean mRegistered;
+    private boolean mDispatchPending;
+    // Between registering and the first read, which is then delivered to every callback.
+    private boolean mSyncPending;
+    // Bumped by every broadcast and registration, so a slower read can't overwrite a newer mode.
+    private int mReceiverSeq;
+
+    @Inject
+    public RingerModeRepository(Context context, FortuneBroadcastDispatcher broadcastDispatcher,
+            @Background Handler bgHandler) {
+        mBroadcastDispatcher = broadcastDispatcher;
+        mBgHandler = bgHandler;
+        mAudioManager = context.getSystemService(AudioManager.class);
+    }
+
+    /**
+     * Returns the current internal ringer mode. Served from memory while callbacks are registered
+     * and the mode is known, read from AudioManager otherwise.
+     */
+    public int getRingerMode() {
+        final int ringerMode = mRingerMode;
+        if (ringerMode != RINGER_MODE_UNKNOWN) {
+            return ringerMode;
+        }
+        return mAudioManager.getRingerModeInternal();
+    }
+
+    /**
+     * Sets the internal ringer mode and reads back what AudioManager applied, which readers see
+     * right away instead of waiting for the broadcast. Goes over binder, don't call it on the main
+     * thread.
+     */
+    public void setRingerMode(int ringerMode) {
+        mAudioManager.setRingerModeInternal(ringerMode);
+        final int applied = mAudioManager.getRingerModeInternal();
+        synchronized (mCallbacks) {
+            if (!mRegistered || applied == mRingerMode) {
+                return;
+            }
+            // Newer than a sync still in flight.
+            mReceiverSeq++;
+            mRingerMode = applied;
+        }
+        scheduleDispatch();
+    }
+
+    @Override
+    public void addCallback(@NonNull Callback callback) {
+        synchronized (mCallbacks) {
+            if (mCallbacks.contains(callback)) {
+                return;
+            }
+            mCallbacks.add(callback);
+            if (!mRegistered) {
+                mRegistered = true;
+                mReceiverSeq++;
+                mBroadcastDispatcher.registerReceiver(mReceiver,
+                        new IntentFilter(AudioManager.INTERNAL_RINGER_MODE_CHANGED_ACTION),
+                        "RingerModeRepository");
+                // Changes before the receiver was registered were missed.
+                mSyncPending = true;
+                mBgHandler.post(mSyncRunnable);
+            }
+            if (mSyncPending) {
+                // The sync delivers the mode to this callback too, don't send it twice.
+                return;
+            }
+        }
+        // Let the new callback catch up with the current mode.
+        mBgHandler.post(() -> {
+            synchronized (mCallbacks) {
+                if (!mCallbacks.contains(callback)) {
+                    return;
+                }
+            }
+            callback.onRingerModeChanged(getRingerMode());
+        });
+    }
+
+    @Override
+    public void removeCallback(@NonNull Callback callback) {
+        synchronized (mCallbacks) {
+            if (!mCallbacks.remove(callback) || !mCallbacks.isEmpty() || !mRegistered) {
+                return;
+            }
+            mRegistered = false;
+            mRingerMode = RINGER_MODE_UNKNOWN;
+            mSyncPending = false;
+            mBgHandler.removeCallbacks(mSyncRunnable);
+            mBroadcastDispatcher.unregisterReceiver(mReceiver);
+        }
+    }
+
+    /**
+     * Reads the mode after registering, caches it unless a broadcast was newer, and delivers it to
+     * the callbacks added meanwhile. A newer broadcast has been delivered to them already.
+     */
+    private void sync() {
+        final int seq;
+        synchronized (mCallbacks) {
+            if (!mRegistered) {
+                return;
+            }
+            seq = mReceiverSeq;
+        }
+        final int ringerMode = mAudioManager.getRingerModeInternal();
+        synchronized (mCallbacks) {
+            if (!mRegistered) {
+                return;
+            }
+            mSyncPending = false;
+            if (seq != mReceiverSeq || ringerMode == mRingerMode) {
+                return;
+            }
+            mRingerMode = ringerMode;
+        }
+        scheduleDispatch();
+    }
+
+    private void scheduleDispatch() {
+        synchronized (mCallbacks) {
+            if (mDispatchPending) {
+                return;
+            }
+            mDispatchPending = true;
+        }
+        mBgHandler.post(mDispatchRunnable);
+    }
+
+    private void dispatch() {
+        final int ringerMode;
+        synchronized (mCallbacks) {
+            mDispatchPending = false;
+            ringerMode = mRingerMode;
+            mDispatchCallbacks.clear();
+            mDispatchCallbacks.addAll(mCallbacks);
+        }
+        for (int i = 0; i < mDispatchCallbacks.size(); i++) {
+            mDispatchCallbacks.get(i).onRingerModeChanged(ringerMode);
+        }
+    }
+}